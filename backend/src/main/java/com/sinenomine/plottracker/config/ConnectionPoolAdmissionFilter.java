@@ -0,0 +1,110 @@
+package com.sinenomine.plottracker.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnThreading;
+import org.springframework.boot.autoconfigure.security.SecurityProperties;
+import org.springframework.boot.thread.Threading;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Lets only as many API requests run at once as there are database connections, since nearly all of them need one.
+ * The others wait here, in arrival order and without holding anything, and after plottracker.db.admission-timeout
+ * get a 503 instead of piling up in the connection pool. Only installed when Boot runs on virtual threads, that is
+ * with spring.threads.virtual.enabled on Java 21 or later: with platform threads Tomcat's pool of
+ * server.tomcat.threads.max caps concurrency already, while with virtual threads this is what keeps thousands of
+ * requests from queueing on HikariCP at the same time.
+ * <p>
+ * Runs after Spring Security, so requests without a valid token never take a slot. Login and registration are left
+ * out, as they wait for the password hasher rather than for the database and would hold slots all that time, and so
+ * are the character image endpoints, which mostly stream files and are limited by CharacterImageService.
+ */
+@Component
+@ConditionalOnThreading(Threading.VIRTUAL)
+@Order(SecurityProperties.DEFAULT_FILTER_ORDER + 1)
+public class ConnectionPoolAdmissionFilter extends OncePerRequestFilter {
+    private static final int DEFAULT_POOL_SIZE = 10;
+    private static final Pattern UNLIMITED_PATHS =
+            Pattern.compile("/api/auth/.*|/api/stories/[^/]+/tags/character/[^/]+/image(/.*)?");
+
+    private final Semaphore permits;
+    private final Duration timeout;
+    private final Counter rejectedRequests;
+
+    public ConnectionPoolAdmissionFilter(DataSource dataSource,
+                                         @Value("${plottracker.db.max-concurrent-requests}") int maxConcurrentRequests,
+                                         @Value("${plottracker.db.admission-timeout}") Duration timeout,
+                                         MeterRegistry meterRegistry) {
+        // 0 follows the size of the connection pool
+        int limit = maxConcurrentRequests > 0 ? maxConcurrentRequests : poolSize(dataSource);
+        this.permits = new Semaphore(limit, true);
+        this.timeout = timeout;
+        this.rejectedRequests = Counter.builder("plottracker.db.admission.rejected")
+                .description("API requests turned away after waiting for a free database connection slot")
+                .register(meterRegistry);
+        Gauge.builder("plottracker.db.admission.active", permits, p -> limit - p.availablePermits())
+                .description("API requests running against the database connection limit")
+                .register(meterRegistry);
+        Gauge.builder("plottracker.db.admission.waiting", permits, Semaphore::getQueueLength)
+                .description("API requests waiting for a database connection slot")
+                .register(meterRegistry);
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        return !path.startsWith("/api/") || UNLIMITED_PATHS.matcher(path).matches();
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        boolean admitted;
+        try {
+            admitted = permits.tryAcquire(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            admitted = false;
+        }
+        if (!admitted) {
+            rejectedRequests.increment();
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+            response.getWriter().write("Server busy, please try again");
+            return;
+        }
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private static int poolSize(DataSource dataSource) {
+        try {
+            if (dataSource.isWrapperFor(HikariDataSource.class))
+                return dataSource.unwrap(HikariDataSource.class).getMaximumPoolSize();
+        } catch (SQLException e) {
+            // Fall back to the default below
+        }
+        return DEFAULT_POOL_SIZE;
+    }
+}
@@ -1,7 +1,9 @@
 package com.sinenomine.plottracker.config;
 
+import com.sinenomine.plottracker.model.UserPrincipal;
 import com.sinenomine.plottracker.service.JWTService;
 import com.sinenomine.plottracker.service.MyUserDetailsService;
+import io.jsonwebtoken.Claims;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.Cookie;
@@ -9,8 +11,8 @@ import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.core.context.SecurityContextHolder;
-import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.web.authentication.WebAuthenticationDetailsSource;
 import org.springframework.stereotype.Component;
 import org.springframework.web.filter.OncePerRequestFilter;
@@ -40,7 +42,6 @@ public class JwtFilter extends OncePerRequestFilter {
         }
 
         String token = null;
-        String username = null;
 
         if (request.getCookies() != null) {
             token = Arrays.stream(request.getCookies())
@@ -51,8 +52,9 @@ public class JwtFilter extends OncePerRequestFilter {
         }
 
         if (token != null) {
+            Claims claims;
             try {
-                username = jwtService.extractUserName(token);
+                claims = jwtService.parseClaims(token);
             } catch (Exception e) {
                 logger.error("Invalid JWT Token: {}" + e.getMessage());
                 response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
@@ -60,18 +62,20 @@ public class JwtFilter extends OncePerRequestFilter {
                 return;
             }
 
-            if (username != null && SecurityContextHolder.getContext().getAuthentication() == null) {
-                UserDetails userDetails = myUserDetailsService.loadUserByUsername(username);
-                if (jwtService.validateToken(token, userDetails)) {
-                    UsernamePasswordAuthenticationToken authToken = new UsernamePasswordAuthenticationToken(userDetails, null, userDetails.getAuthorities());
-                    authToken.setDetails(new WebAuthenticationDetailsSource()
-                            .buildDetails(request));
-                    SecurityContextHolder.getContext().setAuthentication(authToken);
-                } else {
+            if (SecurityContextHolder.getContext().getAuthentication() == null) {
+                UserPrincipal principal;
+                try {
+                    principal = myUserDetailsService.loadUserByToken(claims);
+                } catch (AuthenticationException e) {
+                    // Issued before the account was deleted or its tokens were revoked, or by an older version
                     response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
                     response.getWriter().write("Invalid JWT Token");
                     return;
                 }
+                UsernamePasswordAuthenticationToken authToken = new UsernamePasswordAuthenticationToken(principal, null, principal.getAuthorities());
+                authToken.setDetails(new WebAuthenticationDetailsSource()
+                        .buildDetails(request));
+                SecurityContextHolder.getContext().setAuthentication(authToken);
             }
         }
 
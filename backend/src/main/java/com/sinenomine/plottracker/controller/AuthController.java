@@ -4,6 +4,7 @@ import com.sinenomine.plottracker.dto.UserDto;
 import com.sinenomine.plottracker.model.Users;
 import com.sinenomine.plottracker.service.UserService;
 import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import jakarta.validation.Valid;
 import org.springframework.http.HttpStatus;
@@ -30,16 +31,20 @@ public class AuthController {
     }
 
     @PostMapping("login")
-    public ResponseEntity<?> login(@RequestBody UserDto userDto, HttpServletResponse response) {
-        String token = userService.authenticate(new Users(userDto.getUsername(), userDto.getPassword()));
+    public ResponseEntity<?> login(@RequestBody UserDto userDto, HttpServletRequest request, HttpServletResponse response) {
+        String token = userService.authenticate(new Users(userDto.getUsername(), userDto.getPassword()), request.getRemoteAddr());
+        response.addCookie(jwtCookie(token));
+
+        return ResponseEntity.ok("Login successful");
+    }
+
+    static Cookie jwtCookie(String token) {
         Cookie cookie = new Cookie("jwt", token);
         cookie.setHttpOnly(true);
         cookie.setSecure(false); // todo: Set to true in production (requires HTTPS)
         cookie.setPath("/");
         cookie.setMaxAge(7 * 24 * 60 * 60);
-        response.addCookie(cookie);
-
-        return ResponseEntity.ok("Login successful");
+        return cookie;
     }
 
     @GetMapping("validate")
@@ -3,12 +3,12 @@ package com.sinenomine.plottracker.controller;
 import com.sinenomine.plottracker.dto.PlotEventRequestDto;
 import com.sinenomine.plottracker.dto.PlotEventResponseDto;
 import com.sinenomine.plottracker.model.PlotEvent;
+import com.sinenomine.plottracker.model.UserPrincipal;
 import com.sinenomine.plottracker.service.PlotEventService;
 import jakarta.validation.Valid;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
-import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.validation.BindingResult;
 import org.springframework.web.bind.annotation.*;
@@ -26,12 +26,12 @@ public class PlotEventController {
 
     // GET one plot event by id
     @GetMapping("/{eventId}")
-    public ResponseEntity<?> getPlotEvent(@AuthenticationPrincipal UserDetails userDetails,
+    public ResponseEntity<?> getPlotEvent(@AuthenticationPrincipal UserPrincipal userDetails,
                                           @PathVariable Long eventId) {
         if (userDetails == null)
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Unauthorized");
 
-        PlotEvent event = plotEventService.getPlotEventById(userDetails.getUsername(), eventId);
+        PlotEvent event = plotEventService.getPlotEventById(userDetails.getUserId(), eventId);
         PlotEventResponseDto responseDto = plotEventService.convertToDto(event);
         return ResponseEntity.ok(responseDto);
     }
@@ -39,7 +39,7 @@ public class PlotEventController {
     // PUT update one plot event by id
     @Transactional
     @PutMapping("/{eventId}")
-    public ResponseEntity<?> updatePlotEvent(@AuthenticationPrincipal UserDetails userDetails,
+    public ResponseEntity<?> updatePlotEvent(@AuthenticationPrincipal UserPrincipal userDetails,
                                              @PathVariable Long eventId,
                                              @Valid @RequestBody PlotEventRequestDto plotEventRequestDto,
                                              BindingResult bindingResult) {
@@ -48,44 +48,44 @@ public class PlotEventController {
         if (bindingResult.hasErrors())
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(bindingResult.getAllErrors());
 
-        PlotEvent updatedEvent = plotEventService.updatePlotEvent(eventId, plotEventRequestDto, userDetails.getUsername());
+        PlotEvent updatedEvent = plotEventService.updatePlotEvent(eventId, plotEventRequestDto, userDetails.getUserId());
         PlotEventResponseDto responseDto = plotEventService.convertToDto(updatedEvent);
         return ResponseEntity.ok(responseDto);
     }
 
     // DELETE one plot event by id
     @DeleteMapping("/{eventId}")
-    public ResponseEntity<?> deletePlotEvent(@AuthenticationPrincipal UserDetails userDetails,
+    public ResponseEntity<?> deletePlotEvent(@AuthenticationPrincipal UserPrincipal userDetails,
                                              @PathVariable Long eventId) {
         if (userDetails == null)
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Unauthorized");
 
-        plotEventService.deletePlotEvent(eventId, userDetails.getUsername());
+        plotEventService.deletePlotEvent(eventId, userDetails.getUserId());
         return ResponseEntity.ok("Plot event deleted successfully");
     }
 
     // POST add tag to the plot event
     @PostMapping("/{eventId}/tag/{tagId}")
-    public ResponseEntity<?> addTagToPlotEvent(@AuthenticationPrincipal UserDetails userDetails,
+    public ResponseEntity<?> addTagToPlotEvent(@AuthenticationPrincipal UserPrincipal userDetails,
                                                @PathVariable Long eventId,
                                                @PathVariable Long tagId) {
         if (userDetails == null)
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Unauthorized");
 
-        PlotEvent event = plotEventService.addTagToPlotEvent(eventId, tagId, userDetails.getUsername());
+        PlotEvent event = plotEventService.addTagToPlotEvent(eventId, tagId, userDetails.getUserId());
         PlotEventResponseDto responseDto = plotEventService.convertToDto(event);
         return ResponseEntity.ok(responseDto);
     }
 
     // DELETE remove tag from plot event
     @DeleteMapping("/{eventId}/tag/{tagId}")
-    public ResponseEntity<?> removeTagFromPlotEvent(@AuthenticationPrincipal UserDetails userDetails,
+    public ResponseEntity<?> removeTagFromPlotEvent(@AuthenticationPrincipal UserPrincipal userDetails,
                                                     @PathVariable Long eventId,
                                                     @PathVariable Long tagId) {
         if (userDetails == null)
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Unauthorized");
 
-        PlotEvent event = plotEventService.removeTagFromPlotEvent(eventId, tagId, userDetails.getUsername());
+        PlotEvent event = plotEventService.removeTagFromPlotEvent(eventId, tagId, userDetails.getUserId());
         PlotEventResponseDto responseDto = plotEventService.convertToDto(event);
         return ResponseEntity.ok(responseDto);
     }
@@ -4,24 +4,23 @@ import com.sinenomine.plottracker.dto.*;
 import com.sinenomine.plottracker.enums.EventType;
 import com.sinenomine.plottracker.model.PlotEvent;
 import com.sinenomine.plottracker.model.Story;
+import com.sinenomine.plottracker.model.UserPrincipal;
 import com.sinenomine.plottracker.service.PlotEventService;
 import com.sinenomine.plottracker.service.StoryService;
 import com.sinenomine.plottracker.service.TagService;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
 import jakarta.validation.Valid;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
-import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.validation.BindingResult;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
 
-import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
 
 @RestController
 @RequestMapping("/api/stories")
@@ -40,17 +39,17 @@ public class StoryController {
 
     // GET all user's stories
     @GetMapping("")
-    public ResponseEntity<?> getAllStories(@AuthenticationPrincipal UserDetails userDetails) {
+    public ResponseEntity<?> getAllStories(@AuthenticationPrincipal UserPrincipal userDetails) {
         if (userDetails == null)
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Unauthorized");
 
-        List<StoryResponseDto> stories = storyService.findByUser(userDetails.getUsername());
+        List<StoryResponseDto> stories = storyService.findByUser(userDetails.getUserId());
         return ResponseEntity.ok(stories);
     }
 
     // POST create a new story for the user
     @PostMapping("")
-    public ResponseEntity<?> createStory(@AuthenticationPrincipal UserDetails userDetails,
+    public ResponseEntity<?> createStory(@AuthenticationPrincipal UserPrincipal userDetails,
                                          @Valid @RequestBody StoryRequestDto storyRequestDto,
                                          BindingResult bindingResult) {
         if (userDetails == null)
@@ -59,35 +58,39 @@ public class StoryController {
         if (bindingResult.hasErrors())
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(bindingResult.getAllErrors());
 
-        Story createdStory = storyService.createStory(userDetails.getUsername(), storyRequestDto);
+        Story createdStory = storyService.createStory(userDetails.getUserId(), storyRequestDto);
 
         TagTypeRequestDto tagTypeRequestDto = new TagTypeRequestDto();
         tagTypeRequestDto.setName("Character");
-        tagService.createTagType(createdStory.getStoryId(), tagTypeRequestDto, userDetails.getUsername());
+        tagService.createTagType(createdStory.getStoryId(), tagTypeRequestDto, userDetails.getUserId());
         tagTypeRequestDto.setName("Plot line");
-        tagService.createTagType(createdStory.getStoryId(), tagTypeRequestDto, userDetails.getUsername());
+        tagService.createTagType(createdStory.getStoryId(), tagTypeRequestDto, userDetails.getUserId());
         tagTypeRequestDto.setName("Location");
-        tagService.createTagType(createdStory.getStoryId(), tagTypeRequestDto, userDetails.getUsername());
+        tagService.createTagType(createdStory.getStoryId(), tagTypeRequestDto, userDetails.getUserId());
 
         createdStory.setUser(null);
         return ResponseEntity.status(HttpStatus.CREATED).body(createdStory);
     }
 
-    // GET a specific story's details by id
+    // GET a specific story's details by id; revalidated with the story version as ETag
     @GetMapping("/{id}")
-    public ResponseEntity<?> getStoryDetails(@AuthenticationPrincipal UserDetails userDetails,
-                                             @PathVariable Long id) {
+    public ResponseEntity<?> getStoryDetails(@AuthenticationPrincipal UserPrincipal userDetails,
+                                             @PathVariable Long id,
+                                             ServletWebRequest request) {
         if (userDetails == null)
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Unauthorized");
 
-        Story story = storyService.getStoryDetails(userDetails.getUsername(), id);
+        String eTag = String.valueOf(storyService.getStoryVersion(userDetails.getUserId(), id));
+        if (request.checkNotModified(eTag))
+            return notModified(eTag);
+        Story story = storyService.getStoryDetails(userDetails.getUserId(), id);
         story.setUser(null);
-        return ResponseEntity.ok(story);
+        return ResponseEntity.ok().eTag(eTag).cacheControl(CacheControl.noCache().cachePrivate()).body(story);
     }
 
     // PUT update a specific story by id
     @PutMapping("/{id}")
-    public ResponseEntity<?> updateStory(@AuthenticationPrincipal UserDetails userDetails,
+    public ResponseEntity<?> updateStory(@AuthenticationPrincipal UserPrincipal userDetails,
                                          @PathVariable Long id,
                                          @Valid @RequestBody StoryRequestDto storyRequestDto,
                                          BindingResult bindingResult) {
@@ -97,68 +100,65 @@ public class StoryController {
         if (bindingResult.hasErrors())
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(bindingResult.getAllErrors());
 
-        Story updatedStory = storyService.updateStory(userDetails.getUsername(), id, storyRequestDto);
+        Story updatedStory = storyService.updateStory(userDetails.getUserId(), id, storyRequestDto);
         updatedStory.setUser(null);
         return ResponseEntity.ok(updatedStory);
     }
 
     // DELETE a specific story by id
     @DeleteMapping("/{id}")
-    public ResponseEntity<?> deleteStory(@AuthenticationPrincipal UserDetails userDetails,
+    public ResponseEntity<?> deleteStory(@AuthenticationPrincipal UserPrincipal userDetails,
                                          @PathVariable Long id) {
         if (userDetails == null)
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Unauthorized");
 
-        storyService.deleteStory(userDetails.getUsername(), id);
+        storyService.deleteStory(userDetails.getUserId(), id);
         return ResponseEntity.ok("Story deleted successfully");
     }
 
-    // GET all plot events for a specific story with optional sorting
+    // POST duplicate a specific story with its tags, characters and plot events
+    @PostMapping("/{id}/duplicate")
+    public ResponseEntity<?> duplicateStory(@AuthenticationPrincipal UserPrincipal userDetails,
+                                            @PathVariable Long id) {
+        if (userDetails == null)
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Unauthorized");
+
+        Story duplicatedStory = storyService.duplicateStory(userDetails.getUserId(), id);
+        duplicatedStory.setUser(null);
+        return ResponseEntity.status(HttpStatus.CREATED).body(duplicatedStory);
+    }
+
+    // GET all plot events for a specific story with optional sorting; sortBy=date also accepts a from/to range and a limit.
+    // Revalidated with the story version as ETag.
     @GetMapping("/{id}/plotevents")
-    public ResponseEntity<?> getPlotEvents(@AuthenticationPrincipal UserDetails userDetails,
+    public ResponseEntity<?> getPlotEvents(@AuthenticationPrincipal UserPrincipal userDetails,
                                            @PathVariable Long id,
-                                           @RequestParam(name = "sortBy", required = false, defaultValue = "default") String sortBy) {
+                                           @RequestParam(name = "sortBy", required = false, defaultValue = "default") String sortBy,
+                                           @RequestParam(name = "from", required = false) String from,
+                                           @RequestParam(name = "to", required = false) String to,
+                                           @RequestParam(name = "limit", required = false) Integer limit,
+                                           ServletWebRequest request) {
         if (userDetails == null) {
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Unauthorized");
         }
-        Set<PlotEvent> events = storyService.getPlotEvents(userDetails.getUsername(), id);
+        String eTag = String.valueOf(storyService.getStoryVersion(userDetails.getUserId(), id));
+        if (request.checkNotModified(eTag))
+            return notModified(eTag);
         List<PlotEventResponseDto> plotEventResponseDtos;
 
         if ("story".equalsIgnoreCase(sortBy)) {
-            PlotEvent firstEvent = events.stream()
-                    .filter(e -> e.getInPlot() && e.getPrevEvent() == null)
-                    .findFirst()
-                    .orElse(null);
-            List<PlotEvent> orderedEvents = new ArrayList<>();
-            while (firstEvent != null) {
-                orderedEvents.add(firstEvent);
-                firstEvent = firstEvent.getNextEvent();
-            }
-            plotEventResponseDtos = orderedEvents.stream()
-                    .map(plotEventService::convertToDto)
-                    .collect(Collectors.toList());
+            plotEventResponseDtos = storyService.getPlotEventResponsesInStoryOrder(userDetails.getUserId(), id);
         } else if ("date".equalsIgnoreCase(sortBy)) {
-            plotEventResponseDtos = events.stream()
-                    .filter(e -> e.getDate() == null)
-                    .map(plotEventService::convertToDto)
-                    .collect(Collectors.toList());
-
-            plotEventResponseDtos.addAll(events.stream()
-                    .filter(e -> e.getDate() != null)
-                    .map(plotEventService::convertToDto)
-                    .sorted(Comparator.comparing(PlotEventResponseDto::getDate))
-                    .toList());
+            plotEventResponseDtos = storyService.getPlotEventResponsesInDateOrder(userDetails.getUserId(), id, from, to, limit);
         } else {
-            plotEventResponseDtos = events.stream()
-                    .map(plotEventService::convertToDto)
-                    .collect(Collectors.toList());
+            plotEventResponseDtos = storyService.getPlotEventResponses(userDetails.getUserId(), id);
         }
-        return ResponseEntity.ok(plotEventResponseDtos);
+        return ResponseEntity.ok().eTag(eTag).cacheControl(CacheControl.noCache().cachePrivate()).body(plotEventResponseDtos);
     }
 
     // POST add a new plot event to the user's story
     @PostMapping("/{id}/plotevents")
-    public ResponseEntity<?> addPlotEvent(@AuthenticationPrincipal UserDetails userDetails,
+    public ResponseEntity<?> addPlotEvent(@AuthenticationPrincipal UserPrincipal userDetails,
                                           @PathVariable Long id,
                                           @Valid @RequestBody PlotEventRequestDto plotEventRequestDto,
                                           BindingResult bindingResult) {
@@ -177,7 +177,7 @@ public class StoryController {
         plotEvent.setInPlot(plotEventRequestDto.getInPlot());
 
         PlotEvent createdPlotEvent = storyService.addPlotEventToStory(
-                userDetails.getUsername(),
+                userDetails.getUserId(),
                 id,
                 plotEvent,
                 plotEventRequestDto.getMemoryRefId(),
@@ -190,18 +190,27 @@ public class StoryController {
 
     // GET export plot events as a DOCX file
     @GetMapping("/{storyId}/export")
-    public ResponseEntity<?> exportPlotEventsAsDocx(@AuthenticationPrincipal UserDetails userDetails,
-                                                    @PathVariable Long storyId,
-                                                    @RequestParam(name = "as", required = false, defaultValue = "novella") String as) {
+    public CompletableFuture<ResponseEntity<?>> exportPlotEventsAsDocx(@AuthenticationPrincipal UserPrincipal userDetails,
+                                                                       @PathVariable Long storyId,
+                                                                       @RequestParam(name = "as", required = false, defaultValue = "novella") String as) {
         if (userDetails == null) {
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Unauthorized");
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Unauthorized"));
         }
 
-        byte[] docBytes = storyService.exportPlotEventsAsDocx(userDetails.getUsername(), storyId, as);
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.parseMediaType("application/vnd.openxmlformats-officedocument.wordprocessingml.document"));
-        headers.setContentDispositionFormData("attachment", "plot_events.docx");
-        headers.setContentLength(docBytes.length);
-        return new ResponseEntity<>(docBytes, headers, HttpStatus.OK);
+        return storyService.exportPlotEventsAsDocx(userDetails.getUserId(), storyId, as).thenApply(docBytes -> {
+            HttpHeaders headers = new HttpHeaders();
+            headers.setContentType(MediaType.parseMediaType("application/vnd.openxmlformats-officedocument.wordprocessingml.document"));
+            headers.setContentDispositionFormData("attachment", "plot_events.docx");
+            headers.setContentLength(docBytes.length);
+            return new ResponseEntity<>(docBytes, headers, HttpStatus.OK);
+        });
+    }
+
+    // The client's copy is still current; it keeps using it and asks again next time
+    static ResponseEntity<?> notModified(String eTag) {
+        return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                .eTag(eTag)
+                .cacheControl(CacheControl.noCache().cachePrivate())
+                .build();
     }
 }
@@ -1,47 +1,70 @@
 package com.sinenomine.plottracker.controller;
 
 import com.sinenomine.plottracker.dto.*;
+import com.sinenomine.plottracker.exception.ResourceNotFoundException;
+import com.sinenomine.plottracker.model.CharacterImage;
 import com.sinenomine.plottracker.model.Tag;
 import com.sinenomine.plottracker.model.TagType;
+import com.sinenomine.plottracker.model.UserPrincipal;
+import com.sinenomine.plottracker.service.CharacterImageService;
+import com.sinenomine.plottracker.service.ImageDerivatives;
+import com.sinenomine.plottracker.service.StoryService;
 import com.sinenomine.plottracker.service.TagService;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.validation.Valid;
-import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
-import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.validation.BindingResult;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 @RestController
 @RequestMapping("/api/stories/{storyId}")
 @CrossOrigin(origins = {"http://localhost:3000", "http://localhost:8080"}, allowCredentials = "true")
 public class TagController {
 
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String ORIGINAL_SIZE = "original";
+
     private final TagService tagService;
+    private final StoryService storyService;
+    private final CharacterImageService characterImageService;
 
-    public TagController(TagService tagService) {
+    public TagController(TagService tagService, StoryService storyService, CharacterImageService characterImageService) {
         this.tagService = tagService;
+        this.storyService = storyService;
+        this.characterImageService = characterImageService;
     }
 
-    // GET all tags for the story
+    // GET all tags for the story; revalidated with the story version as ETag
     @GetMapping("/tags")
-    public ResponseEntity<?> getTags(@AuthenticationPrincipal UserDetails userDetails,
-                                     @PathVariable Long storyId) {
+    public ResponseEntity<?> getTags(@AuthenticationPrincipal UserPrincipal userDetails,
+                                     @PathVariable Long storyId,
+                                     ServletWebRequest request) {
         if (userDetails == null)
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Unauthorized");
-        List<TagResponseDto> tags = tagService.getTagResponses(storyId, userDetails.getUsername());
-        return ResponseEntity.ok(tags);
+        String eTag = String.valueOf(storyService.getStoryVersion(userDetails.getUserId(), storyId));
+        if (request.checkNotModified(eTag))
+            return StoryController.notModified(eTag);
+        List<TagResponseDto> tags = tagService.getTagResponses(storyId, userDetails.getUserId());
+        return ResponseEntity.ok().eTag(eTag).cacheControl(CacheControl.noCache().cachePrivate()).body(tags);
     }
 
     // POST create a new tag
     @PostMapping("/tags")
-    public ResponseEntity<?> createTag(@AuthenticationPrincipal UserDetails userDetails,
+    public ResponseEntity<?> createTag(@AuthenticationPrincipal UserPrincipal userDetails,
                                        @PathVariable Long storyId,
                                        @Valid @RequestBody TagRequestDto tagRequestDto,
                                        BindingResult bindingResult) {
@@ -49,7 +72,7 @@ public class TagController {
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Unauthorized");
         if (bindingResult.hasErrors())
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(bindingResult.getAllErrors());
-        Tag createdTag = tagService.createTag(storyId, tagRequestDto, userDetails.getUsername());
+        Tag createdTag = tagService.createTag(storyId, tagRequestDto, userDetails.getUserId());
         TagResponseDto responseDto = new TagResponseDto(
                 createdTag.getTagId(),
                 createdTag.getTagName(),
@@ -62,18 +85,18 @@ public class TagController {
 
     // GET a specific tag by id
     @GetMapping("/tags/{tagId}")
-    public ResponseEntity<?> getTag(@AuthenticationPrincipal UserDetails userDetails,
+    public ResponseEntity<?> getTag(@AuthenticationPrincipal UserPrincipal userDetails,
                                     @PathVariable Long storyId,
                                     @PathVariable Long tagId) {
         if (userDetails == null)
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Unauthorized");
-        TagResponseDto responseDto = tagService.getTag(storyId, tagId, userDetails.getUsername());
+        TagResponseDto responseDto = tagService.getTag(storyId, tagId, userDetails.getUserId());
         return ResponseEntity.ok(responseDto);
     }
 
     // PUT update a tag by id
     @PutMapping("/tags/{tagId}")
-    public ResponseEntity<?> updateTag(@AuthenticationPrincipal UserDetails userDetails,
+    public ResponseEntity<?> updateTag(@AuthenticationPrincipal UserPrincipal userDetails,
                                        @PathVariable Long storyId,
                                        @PathVariable Long tagId,
                                        @Valid @RequestBody TagRequestDto tagRequestDto,
@@ -82,7 +105,7 @@ public class TagController {
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Unauthorized");
         if (bindingResult.hasErrors())
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(bindingResult.getAllErrors());
-        Tag updatedTag = tagService.updateTag(storyId, tagId, tagRequestDto, userDetails.getUsername());
+        Tag updatedTag = tagService.updateTag(storyId, tagId, tagRequestDto, userDetails.getUserId());
         TagResponseDto responseDto = new TagResponseDto(
                 updatedTag.getTagId(),
                 updatedTag.getTagName(),
@@ -95,28 +118,32 @@ public class TagController {
 
     // DELETE a tag by id
     @DeleteMapping("/tags/{tagId}")
-    public ResponseEntity<?> deleteTag(@AuthenticationPrincipal UserDetails userDetails,
+    public ResponseEntity<?> deleteTag(@AuthenticationPrincipal UserPrincipal userDetails,
                                        @PathVariable Long storyId,
                                        @PathVariable Long tagId) {
         if (userDetails == null)
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Unauthorized");
-        tagService.deleteTag(storyId, tagId, userDetails.getUsername());
+        tagService.deleteTag(storyId, tagId, userDetails.getUserId());
         return ResponseEntity.ok("Tag deleted successfully");
     }
 
-    // GET all tag types for the story
+    // GET all tag types for the story; revalidated with the story version as ETag
     @GetMapping("/tagtypes")
-    public ResponseEntity<?> getTagTypes(@AuthenticationPrincipal UserDetails userDetails,
-                                         @PathVariable Long storyId) {
+    public ResponseEntity<?> getTagTypes(@AuthenticationPrincipal UserPrincipal userDetails,
+                                         @PathVariable Long storyId,
+                                         ServletWebRequest request) {
         if (userDetails == null)
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Unauthorized");
-        List<TagTypeResponseDto> tagTypes = tagService.getTagTypeResponses(storyId, userDetails.getUsername());
-        return ResponseEntity.ok(tagTypes);
+        String eTag = String.valueOf(storyService.getStoryVersion(userDetails.getUserId(), storyId));
+        if (request.checkNotModified(eTag))
+            return StoryController.notModified(eTag);
+        List<TagTypeResponseDto> tagTypes = tagService.getTagTypeResponses(storyId, userDetails.getUserId());
+        return ResponseEntity.ok().eTag(eTag).cacheControl(CacheControl.noCache().cachePrivate()).body(tagTypes);
     }
 
     // POST create a new tag type
     @PostMapping("/tagtypes")
-    public ResponseEntity<?> createTagType(@AuthenticationPrincipal UserDetails userDetails,
+    public ResponseEntity<?> createTagType(@AuthenticationPrincipal UserPrincipal userDetails,
                                            @PathVariable Long storyId,
                                            @Valid @RequestBody TagTypeRequestDto tagTypeRequestDto,
                                            BindingResult bindingResult) {
@@ -124,7 +151,7 @@ public class TagController {
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Unauthorized");
         if (bindingResult.hasErrors())
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(bindingResult.getAllErrors());
-        TagType createdTagType = tagService.createTagType(storyId, tagTypeRequestDto, userDetails.getUsername());
+        TagType createdTagType = tagService.createTagType(storyId, tagTypeRequestDto, userDetails.getUserId());
         TagTypeResponseDto responseDto = new TagTypeResponseDto(
                 createdTagType.getTagTypeId(),
                 createdTagType.getName()
@@ -134,12 +161,12 @@ public class TagController {
 
     // GET a specific tag type by id
     @GetMapping("/tagtypes/{tagTypeId}")
-    public ResponseEntity<?> getTagType(@AuthenticationPrincipal UserDetails userDetails,
+    public ResponseEntity<?> getTagType(@AuthenticationPrincipal UserPrincipal userDetails,
                                         @PathVariable Long storyId,
                                         @PathVariable Long tagTypeId) {
         if (userDetails == null)
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Unauthorized");
-        TagType tagType = tagService.getTagType(storyId, tagTypeId, userDetails.getUsername());
+        TagType tagType = tagService.getTagType(storyId, tagTypeId, userDetails.getUserId());
         TagTypeResponseDto responseDto = new TagTypeResponseDto(
                 tagType.getTagTypeId(),
                 tagType.getName()
@@ -149,7 +176,7 @@ public class TagController {
 
     // PUT update a tag type by id
     @PutMapping("/tagtypes/{tagTypeId}")
-    public ResponseEntity<?> updateTagType(@AuthenticationPrincipal UserDetails userDetails,
+    public ResponseEntity<?> updateTagType(@AuthenticationPrincipal UserPrincipal userDetails,
                                            @PathVariable Long storyId,
                                            @PathVariable Long tagTypeId,
                                            @Valid @RequestBody TagTypeRequestDto tagTypeRequestDto,
@@ -158,7 +185,7 @@ public class TagController {
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Unauthorized");
         if (bindingResult.hasErrors())
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(bindingResult.getAllErrors());
-        TagType updatedTagType = tagService.updateTagType(storyId, tagTypeId, tagTypeRequestDto, userDetails.getUsername());
+        TagType updatedTagType = tagService.updateTagType(storyId, tagTypeId, tagTypeRequestDto, userDetails.getUserId());
         TagTypeResponseDto responseDto = new TagTypeResponseDto(
                 updatedTagType.getTagTypeId(),
                 updatedTagType.getName()
@@ -168,29 +195,29 @@ public class TagController {
 
     // DELETE a tag type by id
     @DeleteMapping("/tagtypes/{tagTypeId}")
-    public ResponseEntity<?> deleteTagType(@AuthenticationPrincipal UserDetails userDetails,
+    public ResponseEntity<?> deleteTagType(@AuthenticationPrincipal UserPrincipal userDetails,
                                            @PathVariable Long storyId,
                                            @PathVariable Long tagTypeId) {
         if (userDetails == null)
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Unauthorized");
-        tagService.deleteTagType(storyId, tagTypeId, userDetails.getUsername());
+        tagService.deleteTagType(storyId, tagTypeId, userDetails.getUserId());
         return ResponseEntity.ok("TagType deleted successfully");
     }
 
     // GET a specific character tag
     @GetMapping("/tags/character/{tagId}")
-    public ResponseEntity<?> getCharacterTag(@AuthenticationPrincipal UserDetails userDetails,
+    public ResponseEntity<?> getCharacterTag(@AuthenticationPrincipal UserPrincipal userDetails,
                                              @PathVariable Long storyId,
                                              @PathVariable Long tagId) {
         if (userDetails == null)
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Unauthorized");
-        CharacterResponseDto responseDto = tagService.getCharacterTag(storyId, tagId, userDetails.getUsername());
+        CharacterResponseDto responseDto = tagService.getCharacterTag(storyId, tagId, userDetails.getUserId());
         return ResponseEntity.ok(responseDto);
     }
 
     // PUT update a character tag
     @PutMapping("/tags/character/{tagId}")
-    public ResponseEntity<?> updateCharacterTag(@AuthenticationPrincipal UserDetails userDetails,
+    public ResponseEntity<?> updateCharacterTag(@AuthenticationPrincipal UserPrincipal userDetails,
                                                 @PathVariable Long storyId,
                                                 @PathVariable Long tagId,
                                                 @Valid @RequestBody CharacterRequestDto characterRequestDto,
@@ -200,13 +227,13 @@ public class TagController {
         if (bindingResult.hasErrors())
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(bindingResult.getAllErrors());
 
-        CharacterResponseDto responseDto = tagService.updateCharacterTag(storyId, tagId, characterRequestDto, userDetails.getUsername());
+        CharacterResponseDto responseDto = tagService.updateCharacterTag(storyId, tagId, characterRequestDto, userDetails.getUserId());
         return ResponseEntity.ok(responseDto);
     }
 
     @PostMapping("/tags/character/{tagId}/image")
     public ResponseEntity<?> uploadImage(
-            @AuthenticationPrincipal UserDetails userDetails,
+            @AuthenticationPrincipal UserPrincipal userDetails,
             @PathVariable Long storyId,
             @PathVariable Long tagId,
             @RequestParam("file") MultipartFile file
@@ -214,18 +241,85 @@ public class TagController {
         if (userDetails == null)
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Unauthorized");
 
-        tagService.loadCharacterImage(storyId, tagId, file, userDetails.getUsername());
+        tagService.loadCharacterImage(storyId, tagId, file, userDetails.getUserId());
         return ResponseEntity.ok("Picture uploaded successfully");
     }
 
+    // GET the character's current image, scaled to the given size (64 or 256) unless size=original is asked for;
+    // revalidated with its ETag on every use
     @GetMapping("/tags/character/{tagId}/image")
-    public ResponseEntity<byte[]> getCharacterImage(
-            @AuthenticationPrincipal UserDetails userDetails,
+    public ResponseEntity<Resource> getCharacterImage(
+            @AuthenticationPrincipal UserPrincipal userDetails,
+            @PathVariable Long storyId,
+            @PathVariable Long tagId,
+            @RequestParam(defaultValue = "256") String size,
+            ServletWebRequest request) {
+        String imageHash = tagService.getCharacterImageHash(storyId, tagId, userDetails.getUserId());
+        return imageResponse(imageHash, size, CacheControl.noCache().cachePrivate(), request);
+    }
+
+    // GET a specific image of the character by content hash; the bytes behind this URL never change
+    @GetMapping("/tags/character/{tagId}/image/{imageHash}")
+    public ResponseEntity<Resource> getCharacterImageByHash(
+            @AuthenticationPrincipal UserPrincipal userDetails,
             @PathVariable Long storyId,
-            @PathVariable Long tagId) {
-        ImmutablePair<MediaType, byte[]> image = (ImmutablePair<MediaType, byte[]>)tagService.getCharacterImage(storyId, tagId, userDetails.getUsername());
-        return ResponseEntity.ok()
-                .contentType(image.left)
-                .body(image.right);
+            @PathVariable Long tagId,
+            @PathVariable String imageHash,
+            @RequestParam(defaultValue = "256") String size,
+            ServletWebRequest request) {
+        if (!imageHash.equals(tagService.getCharacterImageHash(storyId, tagId, userDetails.getUserId())))
+            throw new ResourceNotFoundException("Image not found");
+        return imageResponse(imageHash, size, CacheControl.maxAge(365, TimeUnit.DAYS).cachePrivate().immutable(), request);
+    }
+
+    // Answers If-None-Match before the original is looked up. Until the scaled copy for the size exists the original
+    // stands in for it, under its own ETag and without being cached for good. Whole images go out with Tomcat's
+    // sendfile, straight from the page cache to the socket; Range requests and other containers get the file as a
+    // Resource from Spring.
+    private ResponseEntity<Resource> imageResponse(String imageHash, String size, CacheControl cacheControl,
+                                                   ServletWebRequest request) {
+        ImageDerivatives.Derivative derivative = null;
+        if (!ORIGINAL_SIZE.equals(size)) {
+            derivative = characterImageService.getDerivative(imageHash, size).orElse(null);
+            if (derivative == null)
+                cacheControl = CacheControl.noCache().cachePrivate();
+        }
+        String eTag = derivative != null ? derivative.eTag() : imageHash;
+        if (request.checkNotModified(eTag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .eTag(eTag)
+                    .cacheControl(cacheControl)
+                    .build();
+        }
+
+        Path file;
+        String contentType;
+        long length;
+        if (derivative != null) {
+            file = derivative.file();
+            contentType = derivative.contentType();
+            length = derivative.size();
+        } else {
+            CharacterImage image = characterImageService.getImage(imageHash);
+            file = characterImageService.getImageFile(imageHash);
+            contentType = image.getContentType();
+            length = image.getSize();
+        }
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .eTag(eTag)
+                .cacheControl(cacheControl)
+                .contentType(MediaType.parseMediaType(contentType));
+
+        HttpServletRequest servletRequest = request.getRequest();
+        if (servletRequest.getHeader(HttpHeaders.RANGE) == null
+                && Boolean.TRUE.equals(servletRequest.getAttribute(SENDFILE_SUPPORT))) {
+            servletRequest.setAttribute("org.apache.tomcat.sendfile.filename", file.toString());
+            servletRequest.setAttribute("org.apache.tomcat.sendfile.start", 0L);
+            servletRequest.setAttribute("org.apache.tomcat.sendfile.end", length);
+            return response.contentLength(length)
+                    .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                    .build();
+        }
+        return response.body(new FileSystemResource(file));
     }
 }
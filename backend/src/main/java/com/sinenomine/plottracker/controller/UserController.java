@@ -2,13 +2,15 @@ package com.sinenomine.plottracker.controller;
 
 import com.sinenomine.plottracker.dto.ChangePasswordRequestDto;
 import com.sinenomine.plottracker.dto.DeleteUserRequestDto;
+import com.sinenomine.plottracker.dto.ProvisioningStatusDto;
+import com.sinenomine.plottracker.model.UserPrincipal;
 import com.sinenomine.plottracker.model.Users;
 import com.sinenomine.plottracker.service.UserService;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.validation.Valid;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
-import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.web.bind.annotation.*;
 
 @RestController
@@ -22,36 +24,49 @@ public class UserController {
 
     @PutMapping("/password")
     public ResponseEntity<?> changePassword(
-            @AuthenticationPrincipal UserDetails userDetails,
-            @Valid @RequestBody ChangePasswordRequestDto request) {
+            @AuthenticationPrincipal UserPrincipal userDetails,
+            @Valid @RequestBody ChangePasswordRequestDto request,
+            HttpServletResponse response) {
 
         if (userDetails == null)
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Not authenticated");
 
-        userService.changePassword(userDetails.getUsername(), request);
+        // The old token was revoked together with the other sessions
+        String token = userService.changePassword(userDetails.getUserId(), request);
+        response.addCookie(AuthController.jwtCookie(token));
 
         return ResponseEntity.ok("Password updated successfully");
     }
 
     @DeleteMapping("")
     public ResponseEntity<?> deleteUser(
-            @AuthenticationPrincipal UserDetails userDetails,
+            @AuthenticationPrincipal UserPrincipal userDetails,
             @RequestBody DeleteUserRequestDto request) {
 
         if (userDetails == null)
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Not authenticated");
 
-        userService.deleteUser(userDetails.getUsername(), request);
+        userService.deleteUser(userDetails.getUserId(), request);
         return ResponseEntity.ok("User deleted successfully");
     }
 
+    // Polled after registration until the copy of the demo story is there
+    @GetMapping("/provisioning")
+    public ResponseEntity<?> getProvisioningStatus(@AuthenticationPrincipal UserPrincipal userDetails) {
+
+        if (userDetails == null)
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Not authenticated");
+
+        return ResponseEntity.ok(new ProvisioningStatusDto(userService.getProvisioningStatus(userDetails.getUserId())));
+    }
+
     @GetMapping("")
-    public ResponseEntity<?> getUser(@AuthenticationPrincipal UserDetails userDetails) {
+    public ResponseEntity<?> getUser(@AuthenticationPrincipal UserPrincipal userDetails) {
 
         if (userDetails == null)
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Not authenticated");
 
-        Users user = userService.getUser(userDetails.getUsername());
+        Users user = userService.getUser(userDetails.getUserId());
         return ResponseEntity.ok(user);
     }
 }
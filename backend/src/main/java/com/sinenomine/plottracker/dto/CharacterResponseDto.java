@@ -16,11 +16,16 @@ public class CharacterResponseDto {
     @JsonProperty("description")
     private String description;
 
-    public CharacterResponseDto(Long characterId, String name, String shortDescription, String description) {
+    // Part of the cacheable image URL; null without an image
+    @JsonProperty("image_hash")
+    private String imageHash;
+
+    public CharacterResponseDto(Long characterId, String name, String shortDescription, String description, String imageHash) {
         this.characterId = characterId;
         this.name = name;
         this.shortDescription = shortDescription;
         this.description = description;
+        this.imageHash = imageHash;
     }
 
     public Long getCharacterId() {
@@ -54,4 +59,12 @@ public class CharacterResponseDto {
     public void setDescription(String description) {
         this.description = description;
     }
+
+    public String getImageHash() {
+        return imageHash;
+    }
+
+    public void setImageHash(String imageHash) {
+        this.imageHash = imageHash;
+    }
 }
@@ -1,7 +1,9 @@
 package com.sinenomine.plottracker.dto;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.sinenomine.plottracker.enums.EventType;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class PlotEventResponseDto {
@@ -53,6 +55,12 @@ public class PlotEventResponseDto {
         this.tags = tags;
     }
 
+    // Used by the JPQL projection; prevEventId and tags are filled in afterwards
+    public PlotEventResponseDto(EventType eventType, Long eventId, String title, String date, String description,
+                                String content, Boolean isInPlot, Long memoryRefId) {
+        this(eventType.name(), eventId, title, date, description, content, isInPlot, memoryRefId, null, new ArrayList<>());
+    }
+
     public String getEventType() {
         return eventType;
     }
@@ -0,0 +1,71 @@
+package com.sinenomine.plottracker.dto;
+
+public class PlotEventTagDto {
+    private Long eventId;
+    private Long tagId;
+    private String tagName;
+    private Long tagTypeId;
+    private String tagTypeName;
+    private String color;
+
+    public PlotEventTagDto(Long eventId, Long tagId, String tagName, Long tagTypeId, String tagTypeName, String color) {
+        this.eventId = eventId;
+        this.tagId = tagId;
+        this.tagName = tagName;
+        this.tagTypeId = tagTypeId;
+        this.tagTypeName = tagTypeName;
+        this.color = color;
+    }
+
+    public TagResponseDto toTagResponseDto() {
+        return new TagResponseDto(tagId, tagName, tagTypeId, tagTypeName, color);
+    }
+
+    public Long getEventId() {
+        return eventId;
+    }
+
+    public void setEventId(Long eventId) {
+        this.eventId = eventId;
+    }
+
+    public Long getTagId() {
+        return tagId;
+    }
+
+    public void setTagId(Long tagId) {
+        this.tagId = tagId;
+    }
+
+    public String getTagName() {
+        return tagName;
+    }
+
+    public void setTagName(String tagName) {
+        this.tagName = tagName;
+    }
+
+    public Long getTagTypeId() {
+        return tagTypeId;
+    }
+
+    public void setTagTypeId(Long tagTypeId) {
+        this.tagTypeId = tagTypeId;
+    }
+
+    public String getTagTypeName() {
+        return tagTypeName;
+    }
+
+    public void setTagTypeName(String tagTypeName) {
+        this.tagTypeName = tagTypeName;
+    }
+
+    public String getColor() {
+        return color;
+    }
+
+    public void setColor(String color) {
+        this.color = color;
+    }
+}
@@ -0,0 +1,18 @@
+package com.sinenomine.plottracker.dto;
+
+public class ProvisioningStatusDto {
+    // PENDING while the demo story of a new account is being copied, then DONE, or FAILED once retries are used up
+    private String status;
+
+    public ProvisioningStatusDto(String status) {
+        this.status = status;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+}
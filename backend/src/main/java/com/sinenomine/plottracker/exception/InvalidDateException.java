@@ -0,0 +1,7 @@
+package com.sinenomine.plottracker.exception;
+
+public class InvalidDateException extends RuntimeException {
+    public InvalidDateException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,7 @@
+package com.sinenomine.plottracker.exception;
+
+public class InvalidImageException extends RuntimeException {
+    public InvalidImageException(String message) {
+        super(message);
+    }
+}
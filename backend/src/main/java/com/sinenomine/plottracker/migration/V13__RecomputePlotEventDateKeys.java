@@ -0,0 +1,36 @@
+package com.sinenomine.plottracker.migration;
+
+import com.sinenomine.plottracker.service.DateKeyParser;
+import org.flywaydb.core.api.migration.BaseJavaMigration;
+import org.flywaydb.core.api.migration.Context;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Computes plot_event.date_key again for every dated event. DateKeyParser used to size segments after the date itself
+ * when a date did not match its story's dateFormat, which gave keys out of date order; dates it no longer accepts lose
+ * their key.
+ */
+@Component
+public class V13__RecomputePlotEventDateKeys extends BaseJavaMigration {
+
+    @Override
+    public void migrate(Context context) {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(new SingleConnectionDataSource(context.getConnection(), true));
+        List<Object[]> keys = new ArrayList<>();
+        jdbcTemplate.query(
+                "SELECT p.event_id, p.date, s.date_format FROM plot_event p JOIN story s ON s.story_id = p.story_id " +
+                        "WHERE p.date IS NOT NULL",
+                rs -> {
+                    Long key = DateKeyParser.toSortKey(rs.getString("date"), rs.getString("date_format"));
+                    keys.add(new Object[]{key, rs.getLong("event_id")});
+                });
+        if (!keys.isEmpty()) {
+            jdbcTemplate.batchUpdate("UPDATE plot_event SET date_key = ? WHERE event_id = ?", keys);
+        }
+    }
+}
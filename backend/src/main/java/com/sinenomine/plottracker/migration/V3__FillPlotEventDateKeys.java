@@ -0,0 +1,37 @@
+package com.sinenomine.plottracker.migration;
+
+import com.sinenomine.plottracker.service.DateKeyParser;
+import org.flywaydb.core.api.migration.BaseJavaMigration;
+import org.flywaydb.core.api.migration.Context;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fills plot_event.date_key for existing events. The key depends on the story's dateFormat and is computed by
+ * DateKeyParser, so this step cannot be plain SQL. Dates that cannot be parsed keep a null key.
+ */
+@Component
+public class V3__FillPlotEventDateKeys extends BaseJavaMigration {
+
+    @Override
+    public void migrate(Context context) {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(new SingleConnectionDataSource(context.getConnection(), true));
+        List<Object[]> keys = new ArrayList<>();
+        jdbcTemplate.query(
+                "SELECT p.event_id, p.date, s.date_format FROM plot_event p JOIN story s ON s.story_id = p.story_id " +
+                        "WHERE p.date IS NOT NULL",
+                rs -> {
+                    Long key = DateKeyParser.toSortKey(rs.getString("date"), rs.getString("date_format"));
+                    if (key != null) {
+                        keys.add(new Object[]{key, rs.getLong("event_id")});
+                    }
+                });
+        if (!keys.isEmpty()) {
+            jdbcTemplate.batchUpdate("UPDATE plot_event SET date_key = ? WHERE event_id = ?", keys);
+        }
+    }
+}
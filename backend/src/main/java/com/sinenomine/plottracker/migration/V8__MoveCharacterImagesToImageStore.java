@@ -0,0 +1,40 @@
+package com.sinenomine.plottracker.migration;
+
+import com.sinenomine.plottracker.service.ImageStore;
+import org.flywaydb.core.api.migration.BaseJavaMigration;
+import org.flywaydb.core.api.migration.Context;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Moves the image bytes from character_image.data into the {@link ImageStore} and replaces them by a reference count,
+ * the number of characters using the image. Images are copied one row at a time so only one is in memory at once.
+ */
+@Component
+public class V8__MoveCharacterImagesToImageStore extends BaseJavaMigration {
+
+    private final ImageStore imageStore;
+
+    public V8__MoveCharacterImagesToImageStore(ImageStore imageStore) {
+        this.imageStore = imageStore;
+    }
+
+    @Override
+    public void migrate(Context context) {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(new SingleConnectionDataSource(context.getConnection(), true));
+        for (String imageHash : jdbcTemplate.queryForList("SELECT image_hash FROM character_image", String.class)) {
+            byte[] data = jdbcTemplate.queryForObject(
+                    "SELECT data FROM character_image WHERE image_hash = ?", byte[].class, imageHash);
+            String storedHash = imageStore.put(data);
+            if (!storedHash.equals(imageHash))
+                throw new IllegalStateException("Image " + imageHash + " does not match its content hash " + storedHash);
+        }
+
+        jdbcTemplate.execute("ALTER TABLE character_image ADD COLUMN ref_count INT NOT NULL DEFAULT 0");
+        jdbcTemplate.update("UPDATE character_image i JOIN (" +
+                "SELECT image_hash, COUNT(*) AS n FROM characters WHERE image_hash IS NOT NULL GROUP BY image_hash" +
+                ") r ON r.image_hash = i.image_hash SET i.ref_count = r.n");
+        jdbcTemplate.execute("ALTER TABLE character_image DROP COLUMN data");
+    }
+}
@@ -7,7 +7,7 @@ import jakarta.persistence.*;
 public class Character {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @TimeOrderedId
     @Column(name = "character_id")
     private Long characterId;
 
@@ -21,12 +21,9 @@ public class Character {
     @JoinColumn(name = "tag_id", nullable = false)
     private Tag tag;
 
-    @Lob
-    @Column(name = "image", columnDefinition = "LONGBLOB")
-    private byte[] image;
-
-    @Column(name = "image_content_type", length = 100)
-    private String imageContentType;
+    // SHA-256 of the image in character_image, null without an image
+    @Column(name = "image_hash", columnDefinition = "CHAR(64)")
+    private String imageHash;
 
 
     public Long getCharacterId() {
@@ -61,19 +58,11 @@ public class Character {
         this.tag = tag;
     }
 
-    public byte[] getImage() {
-        return image;
-    }
-
-    public void setImage(byte[] image) {
-        this.image = image;
-    }
-
-    public String getImageContentType() {
-        return imageContentType;
+    public String getImageHash() {
+        return imageHash;
     }
 
-    public void setImageContentType(String imageContentType) {
-        this.imageContentType = imageContentType;
+    public void setImageHash(String imageHash) {
+        this.imageHash = imageHash;
     }
 }
@@ -0,0 +1,57 @@
+package com.sinenomine.plottracker.model;
+
+import jakarta.persistence.*;
+
+/**
+ * Metadata of a character image, stored once per content and keyed by its SHA-256 hash. The bytes live in the
+ * {@link com.sinenomine.plottracker.service.ImageStore}; refCount is the number of characters using the image.
+ */
+@Entity
+@Table(name = "character_image")
+public class CharacterImage {
+
+    @Id
+    @Column(name = "image_hash", columnDefinition = "CHAR(64)")
+    private String imageHash;
+
+    @Column(name = "content_type", nullable = false, length = 100)
+    private String contentType;
+
+    @Column(name = "size", nullable = false)
+    private Long size;
+
+    @Column(name = "ref_count", nullable = false)
+    private Integer refCount;
+
+    public String getImageHash() {
+        return imageHash;
+    }
+
+    public void setImageHash(String imageHash) {
+        this.imageHash = imageHash;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public Long getSize() {
+        return size;
+    }
+
+    public void setSize(Long size) {
+        this.size = size;
+    }
+
+    public Integer getRefCount() {
+        return refCount;
+    }
+
+    public void setRefCount(Integer refCount) {
+        this.refCount = refCount;
+    }
+}
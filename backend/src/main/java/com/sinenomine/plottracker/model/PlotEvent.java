@@ -2,19 +2,25 @@ package com.sinenomine.plottracker.model;
 
 import com.sinenomine.plottracker.enums.EventType;
 import jakarta.persistence.*;
+import org.hibernate.annotations.BatchSize;
 
 import java.util.HashSet;
 import java.util.Set;
 
 @Entity
+@Table(indexes = {
+        @Index(name = "idx_plot_event_story_position", columnList = "story_id, position"),
+        @Index(name = "idx_plot_event_story_date_key", columnList = "story_id, date_key")
+})
+@BatchSize(size = 100)
 public class PlotEvent {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @TimeOrderedId
     @Column(name = "event_id")
     private Long eventId;
 
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "story_id", nullable = false)
     private Story story;
 
@@ -28,6 +34,10 @@ public class PlotEvent {
     @Column(length = 50)
     private String date;
 
+    // Numeric form of date in the story's dateFormat, see DateKeyParser; null for undated events
+    @Column(name = "date_key")
+    private Long dateKey;
+
     @Column
     private String description;
 
@@ -37,19 +47,17 @@ public class PlotEvent {
     @Column
     private Boolean isInPlot;
 
-    @ManyToOne(cascade = CascadeType.REMOVE)
+    @ManyToOne(fetch = FetchType.LAZY, cascade = CascadeType.REMOVE)
     @JoinColumn(name = "memory_ref_id", foreignKey = @ForeignKey(name = "FK_memory_ref"))
     private PlotEvent memoryRef;
 
-    @ManyToOne(cascade = CascadeType.REMOVE)
-    @JoinColumn(name = "prev_event_id", foreignKey = @ForeignKey(name = "FK_prev_event"))
-    private PlotEvent prevEvent;
-
-    @ManyToOne(cascade = CascadeType.REMOVE)
-    @JoinColumn(name = "next_event_id", foreignKey = @ForeignKey(name = "FK_next_event"))
-    private PlotEvent nextEvent;
+    // Sortable rank in the story order; only in-plot events have one. Ranks are gapped so an insert or a move
+    // normally only writes the moved event
+    @Column(name = "position")
+    private Long position;
 
     @ManyToMany(cascade = CascadeType.REMOVE)
+    @BatchSize(size = 100)
     @JoinTable(
             name = "PlotEventTag",
             joinColumns = @JoinColumn(name = "event_id"),
@@ -97,6 +105,14 @@ public class PlotEvent {
         this.date = date;
     }
 
+    public Long getDateKey() {
+        return dateKey;
+    }
+
+    public void setDateKey(Long dateKey) {
+        this.dateKey = dateKey;
+    }
+
     public String getDescription() {
         return description;
     }
@@ -129,20 +145,12 @@ public class PlotEvent {
         this.memoryRef = memoryRef;
     }
 
-    public PlotEvent getPrevEvent() {
-        return prevEvent;
-    }
-
-    public void setPrevEvent(PlotEvent prevEvent) {
-        this.prevEvent = prevEvent;
-    }
-
-    public PlotEvent getNextEvent() {
-        return nextEvent;
+    public Long getPosition() {
+        return position;
     }
 
-    public void setNextEvent(PlotEvent nextEvent) {
-        this.nextEvent = nextEvent;
+    public void setPosition(Long position) {
+        this.position = position;
     }
 
     public Set<Tag> getTags() {
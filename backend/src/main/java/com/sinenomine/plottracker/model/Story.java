@@ -1,5 +1,6 @@
 package com.sinenomine.plottracker.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import jakarta.persistence.*;
 
 import java.util.Objects;
@@ -8,7 +9,7 @@ import java.util.Objects;
 public class Story {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @TimeOrderedId
     @Column(name = "story_id")
     private Long storyId;
 
@@ -19,10 +20,15 @@ public class Story {
 
     private String dateFormat;
 
-    @ManyToOne
+    // Ownership checks only need the id, which the proxy returns from Users.getUserId without reading users
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "user_id", nullable = false)
     private Users user;
 
+    // Only ever raised in the database, see StoryRepo.incrementVersion
+    @Column(nullable = false, insertable = false, updatable = false)
+    private long version;
+
     public Long getStoryId() {
         return storyId;
     }
@@ -63,6 +69,11 @@ public class Story {
         this.user = user;
     }
 
+    @JsonIgnore
+    public long getVersion() {
+        return version;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
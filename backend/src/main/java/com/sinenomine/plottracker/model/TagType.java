@@ -8,7 +8,7 @@ import java.util.Objects;
 public class TagType {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @TimeOrderedId
     @Column(name = "tag_type_id")
     private Long tagTypeId;
 
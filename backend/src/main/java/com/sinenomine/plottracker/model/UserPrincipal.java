@@ -7,12 +7,37 @@ import org.springframework.security.core.userdetails.UserDetails;
 import java.util.Collection;
 import java.util.Collections;
 
+/**
+ * The authenticated user. At login it is read from the users row; for requests carrying a token it is built from the
+ * token's claims alone and has no password.
+ */
 public class UserPrincipal implements UserDetails {
 
-    private Users user;
+    private final Long userId;
+    private final String username;
+    private final String password;
+    private final int tokenVersion;
 
     public UserPrincipal(Users user) {
-        this.user = user;
+        this.userId = user.getUserId();
+        this.username = user.getUsername();
+        this.password = user.getPassword();
+        this.tokenVersion = user.getTokenVersion();
+    }
+
+    public UserPrincipal(Long userId, String username, int tokenVersion) {
+        this.userId = userId;
+        this.username = username;
+        this.password = null;
+        this.tokenVersion = tokenVersion;
+    }
+
+    public Long getUserId() {
+        return userId;
+    }
+
+    public int getTokenVersion() {
+        return tokenVersion;
     }
 
     @Override
@@ -22,12 +47,12 @@ public class UserPrincipal implements UserDetails {
 
     @Override
     public String getPassword() {
-        return user.getPassword();
+        return password;
     }
 
     @Override
     public String getUsername() {
-        return user.getUsername();
+        return username;
     }
 
     @Override
@@ -49,4 +74,4 @@ public class UserPrincipal implements UserDetails {
     public boolean isEnabled() {
         return true;
     }
-}
\ No newline at end of file
+}
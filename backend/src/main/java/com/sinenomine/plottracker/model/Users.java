@@ -1,5 +1,7 @@
 package com.sinenomine.plottracker.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import jakarta.persistence.*;
 
 @Entity
@@ -8,7 +10,7 @@ import jakarta.persistence.*;
 })
 public class Users {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @TimeOrderedId
     @Column(name = "user_id")
     private Long userId;
 
@@ -18,6 +20,10 @@ public class Users {
     @Column(nullable = false)
     private String password;
 
+    // Raised to revoke every token issued so far, see JWTService
+    @Column(name = "token_version", nullable = false)
+    private int tokenVersion;
+
     public Users() {
     }
 
@@ -26,7 +32,9 @@ public class Users {
         this.password = password;
     }
 
-    public Long getId() {
+    // Named after the id field, so that Hibernate answers it from an uninitialized proxy without reading users
+    @JsonProperty("id")
+    public Long getUserId() {
         return userId;
     }
 
@@ -46,6 +54,17 @@ public class Users {
         this.password = password;
     }
 
+    @JsonIgnore
+    public int getTokenVersion() {
+        return tokenVersion;
+    }
+
+    // Rejected at once by the instance that revokes; other instances follow within
+    // MyUserDetailsService.TOKEN_VERSION_TTL
+    public void revokeTokens() {
+        tokenVersion++;
+    }
+
     @Override
     public String toString() {
         return "Users{" +
@@ -0,0 +1,56 @@
+package com.sinenomine.plottracker.repo;
+
+import com.sinenomine.plottracker.model.CharacterImage;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+
+@Repository
+public interface CharacterImageRepo extends JpaRepository<CharacterImage, String> {
+
+    // Identical uploads share one row, also when they race each other
+    @Modifying
+    @Query(
+            value = "INSERT IGNORE INTO character_image (image_hash, content_type, size, ref_count) " +
+                    "VALUES (:imageHash, :contentType, :size, 0)",
+            nativeQuery = true
+    )
+    int insertIfAbsent(@Param("imageHash") String imageHash,
+                       @Param("contentType") String contentType,
+                       @Param("size") long size);
+
+    @Modifying
+    @Query(
+            value = "UPDATE character_image SET ref_count = ref_count + :delta WHERE image_hash = :imageHash",
+            nativeQuery = true
+    )
+    int addReferences(@Param("imageHash") String imageHash, @Param("delta") int delta);
+
+    // Adds (sign 1) or removes (sign -1) one reference per character of the story that has an image
+    @Modifying(flushAutomatically = true)
+    @Query(
+            value = "UPDATE character_image i JOIN (" +
+                    "SELECT c.image_hash, COUNT(*) AS n FROM characters c JOIN tag t ON t.tag_id = c.tag_id " +
+                    "WHERE t.story_id = :storyId AND c.image_hash IS NOT NULL GROUP BY c.image_hash" +
+                    ") r ON r.image_hash = i.image_hash " +
+                    "SET i.ref_count = i.ref_count + :sign * r.n",
+            nativeQuery = true
+    )
+    int addStoryReferences(@Param("storyId") Long storyId, @Param("sign") int sign);
+
+    @Modifying(flushAutomatically = true)
+    @Query(
+            value = "DELETE FROM character_image WHERE image_hash IN (:imageHashes) AND ref_count <= 0",
+            nativeQuery = true
+    )
+    int deleteUnreferenced(@Param("imageHashes") Collection<String> imageHashes);
+
+    // Locking read of the row; where the row is missing the lock covers the gap it would go in, so an insert of the
+    // same hash waits for the caller's transaction to end
+    @Query(value = "SELECT COUNT(*) FROM character_image WHERE image_hash = :imageHash FOR UPDATE", nativeQuery = true)
+    long countForUpdate(@Param("imageHash") String imageHash);
+}
@@ -18,8 +18,14 @@ public interface CharacterRepo extends JpaRepository<Character, Long> {
 
     List<Character> findByTag_Story_StoryId(Long StoryId);
 
+    @Query("SELECT c.imageHash FROM Character c WHERE c.tag.tagId = :tagId")
+    String findImageHashByTagId(@Param("tagId") Long tagId);
+
     long deleteByTag_TagId(Long tagId);
 
+    @Query("SELECT DISTINCT c.imageHash FROM Character c WHERE c.tag.story.storyId = :storyId AND c.imageHash IS NOT NULL")
+    List<String> findImageHashesByStoryId(@Param("storyId") Long storyId);
+
     @Modifying
     @Query(
             value  = "DELETE c FROM characters c JOIN Tag t ON c.tag_id = t.tag_id WHERE t.story_id = :storyId",
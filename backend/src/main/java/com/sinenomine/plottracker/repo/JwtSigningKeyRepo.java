@@ -0,0 +1,57 @@
+package com.sinenomine.plottracker.repo;
+
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Rows of jwt_signing_key. All times are taken from the database clock, so nodes with skewed clocks still agree on
+ * which key is current and when old ones expire.
+ */
+@Repository
+public class JwtSigningKeyRepo {
+
+    public record SigningKeyRow(String kid, byte[] secret) {
+    }
+
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+
+    public JwtSigningKeyRepo(NamedParameterJdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    // Keys that may still verify tokens, newest (the signing key) first
+    public List<SigningKeyRow> findUsable() {
+        return jdbcTemplate.query(
+                "SELECT kid, secret FROM jwt_signing_key WHERE expires_at IS NULL OR expires_at > NOW(6) " +
+                        "ORDER BY created_at DESC",
+                (rs, rowNum) -> new SigningKeyRow(rs.getString("kid"), rs.getBytes("secret")));
+    }
+
+    // Age of the newest key in seconds, locking it so that only one node at a time can decide to rotate
+    @Transactional(propagation = Propagation.MANDATORY)
+    public long lockNewestKeyAge() {
+        String sql = "SELECT TIMESTAMPDIFF(SECOND, created_at, NOW(6)) FROM jwt_signing_key " +
+                "ORDER BY created_at DESC LIMIT 1 FOR UPDATE";
+        jdbcTemplate.queryForObject(sql, new MapSqlParameterSource(), Long.class);
+        // Read again now that the lock is held: a node that waited for it has to see the key the other one added
+        return jdbcTemplate.queryForObject(sql, new MapSqlParameterSource(), Long.class);
+    }
+
+    // Adds the new signing key, gives the keys it replaces until now + retireAfter and drops keys past that
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void rotate(SigningKeyRow key, Duration retireAfter) {
+        MapSqlParameterSource params = new MapSqlParameterSource("kid", key.kid())
+                .addValue("secret", key.secret())
+                .addValue("retireSeconds", retireAfter.toSeconds());
+        jdbcTemplate.update("DELETE FROM jwt_signing_key WHERE expires_at <= NOW(6)", params);
+        jdbcTemplate.update("UPDATE jwt_signing_key SET expires_at = NOW(6) + INTERVAL :retireSeconds SECOND " +
+                "WHERE expires_at IS NULL", params);
+        jdbcTemplate.update("INSERT INTO jwt_signing_key (kid, secret) VALUES (:kid, :secret)", params);
+    }
+}
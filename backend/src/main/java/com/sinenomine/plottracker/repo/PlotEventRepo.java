@@ -1,23 +1,112 @@
 package com.sinenomine.plottracker.repo;
 
+import com.sinenomine.plottracker.dto.PlotEventResponseDto;
+import com.sinenomine.plottracker.dto.PlotEventTagDto;
 import com.sinenomine.plottracker.model.PlotEvent;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
 import java.util.Set;
 
 @Repository
 public interface PlotEventRepo extends JpaRepository<PlotEvent, Long> {
 
+    // Tags and their types are fetched with the events so the list endpoint does not issue a select per event
+    @EntityGraph(attributePaths = {"tags", "tags.tagType"})
     @Query("select p from PlotEvent p where p.story.storyId = :storyId")
     Set<PlotEvent> findByStory(Long storyId);
 
     List<PlotEvent> findByStory_StoryId(Long StoryId);
 
+    List<PlotEvent> findByStory_StoryIdAndPositionNotNullOrderByPosition(Long storyId);
+
+    @Query("SELECT new com.sinenomine.plottracker.dto.PlotEventResponseDto(p.eventType, p.eventId, p.title, p.date, " +
+            "p.description, p.content, p.isInPlot, m.eventId) " +
+            "FROM PlotEvent p LEFT JOIN p.memoryRef m WHERE p.story.storyId = :storyId")
+    List<PlotEventResponseDto> findResponsesByStory(Long storyId);
+
+    @Query("SELECT new com.sinenomine.plottracker.dto.PlotEventResponseDto(p.eventType, p.eventId, p.title, p.date, " +
+            "p.description, p.content, p.isInPlot, m.eventId) " +
+            "FROM PlotEvent p LEFT JOIN p.memoryRef m WHERE p.story.storyId = :storyId AND p.position IS NOT NULL " +
+            "ORDER BY p.position")
+    List<PlotEventResponseDto> findResponsesByStoryInStoryOrder(Long storyId);
+
+    // Undated events have a null key and come first; from/to restrict to dated events in that key range
+    @Query("SELECT new com.sinenomine.plottracker.dto.PlotEventResponseDto(p.eventType, p.eventId, p.title, p.date, " +
+            "p.description, p.content, p.isInPlot, m.eventId) " +
+            "FROM PlotEvent p LEFT JOIN p.memoryRef m WHERE p.story.storyId = :storyId " +
+            "AND (:fromKey IS NULL OR p.dateKey >= :fromKey) AND (:toKey IS NULL OR p.dateKey <= :toKey) " +
+            "ORDER BY p.dateKey, p.eventId")
+    List<PlotEventResponseDto> findResponsesByStoryInDateOrder(Long storyId, Long fromKey, Long toKey, Limit limit);
+
+    @Query("select p.eventId from PlotEvent p where p.story.storyId = :storyId and p.position is not null order by p.position")
+    List<Long> findStoryOrder(Long storyId);
+
+    @Query("select p.position from PlotEvent p where p.story.storyId = :storyId and p.eventId = :eventId")
+    Long findPosition(Long storyId, Long eventId);
+
+    @Query("select min(p.position) from PlotEvent p where p.story.storyId = :storyId " +
+            "and (:excludedEventId is null or p.eventId <> :excludedEventId)")
+    Long findFirstPosition(Long storyId, Long excludedEventId);
+
+    @Query("select min(p.position) from PlotEvent p where p.story.storyId = :storyId and p.position > :position " +
+            "and (:excludedEventId is null or p.eventId <> :excludedEventId)")
+    Long findNextPosition(Long storyId, Long position, Long excludedEventId);
+
+    @Query("select p.eventId from PlotEvent p where p.story.storyId = :storyId and p.position < :position " +
+            "order by p.position desc limit 1")
+    Long findPrevEventId(Long storyId, Long position);
+
+    // The previous event in story order of each of the given in-plot events, each read backwards along the
+    // (story_id, position) index, for responses that hold only part of the story
+    @Query(
+            value = "SELECT p.event_id AS eventId, (SELECT q.event_id FROM plot_event q " +
+                    "WHERE q.story_id = p.story_id AND q.position < p.position ORDER BY q.position DESC LIMIT 1) AS prevEventId " +
+                    "FROM plot_event p WHERE p.story_id = :storyId AND p.event_id IN (:eventIds) AND p.position IS NOT NULL",
+            nativeQuery = true
+    )
+    List<Predecessor> findPredecessors(@Param("storyId") Long storyId, @Param("eventIds") Collection<Long> eventIds);
+
+    interface Predecessor {
+        Long getEventId();
+
+        Long getPrevEventId();
+    }
+
+    @Modifying
+    @Query(
+            value  = "UPDATE plot_event p JOIN (SELECT event_id, ROW_NUMBER() OVER (ORDER BY position) AS rn " +
+                    "FROM plot_event WHERE story_id = :storyId AND position IS NOT NULL) ranked " +
+                    "ON ranked.event_id = p.event_id SET p.position = ranked.rn * :gap",
+            nativeQuery = true
+    )
+    int renumberPositions(@Param("storyId") Long storyId, @Param("gap") long gap);
+
+    @Query("SELECT new com.sinenomine.plottracker.dto.PlotEventTagDto(p.eventId, t.tagId, t.tagName, t.tagType.tagTypeId, t.tagType.name, t.color) " +
+            "FROM PlotEvent p JOIN p.tags t WHERE p.story.storyId = :storyId")
+    List<PlotEventTagDto> findTagResponsesByStory(Long storyId);
+
+    @Query("SELECT new com.sinenomine.plottracker.dto.PlotEventTagDto(p.eventId, t.tagId, t.tagName, t.tagType.tagTypeId, t.tagType.name, t.color) " +
+            "FROM PlotEvent p JOIN p.tags t WHERE p.eventId IN :eventIds")
+    List<PlotEventTagDto> findTagResponsesByEventIds(Collection<Long> eventIds);
+
+    // Single event with what the response needs, without walking the story order; ownership is checked before with
+    // findAccess
+    @EntityGraph(attributePaths = {"tags", "tags.tagType"})
+    Optional<PlotEvent> findWithTagsByEventId(Long eventId);
+
+    @Query("SELECT new com.sinenomine.plottracker.repo.StoryAccess(s.storyId, s.user.userId, s.dateFormat) " +
+            "FROM PlotEvent p JOIN p.story s WHERE p.eventId = :eventId")
+    Optional<StoryAccess> findAccess(Long eventId);
+
     long deleteByStory_StoryId(Long storyId);
 
     @Modifying
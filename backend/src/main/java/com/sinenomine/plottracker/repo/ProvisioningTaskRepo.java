@@ -0,0 +1,77 @@
+package com.sinenomine.plottracker.repo;
+
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Rows of provisioning_task. Times come from the database clock, like in {@link JwtSigningKeyRepo}.
+ */
+@Repository
+public class ProvisioningTaskRepo {
+    public static final String PENDING = "PENDING";
+    public static final String DONE = "DONE";
+    public static final String FAILED = "FAILED";
+
+    private static final int MAX_ERROR_LENGTH = 500;
+
+    static final String CLAIM_DUE_SQL = "SELECT user_id FROM provisioning_task WHERE status = :status " +
+            "AND next_attempt_at <= NOW(6) ORDER BY next_attempt_at LIMIT 1 FOR UPDATE SKIP LOCKED";
+
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+
+    public ProvisioningTaskRepo(NamedParameterJdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void insert(Long userId) {
+        jdbcTemplate.update("INSERT INTO provisioning_task (user_id) VALUES (:userId)",
+                new MapSqlParameterSource("userId", userId));
+    }
+
+    // Locks the pending task that is due first until the transaction ends; tasks locked by other workers are skipped
+    // rather than waited for
+    @Transactional(propagation = Propagation.MANDATORY)
+    public Optional<Long> claimDue() {
+        List<Long> userIds = jdbcTemplate.queryForList(CLAIM_DUE_SQL,
+                new MapSqlParameterSource("status", PENDING), Long.class);
+        return userIds.stream().findFirst();
+    }
+
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void markDone(Long userId) {
+        jdbcTemplate.update("UPDATE provisioning_task SET status = :status, last_error = NULL WHERE user_id = :userId",
+                new MapSqlParameterSource("status", DONE).addValue("userId", userId));
+    }
+
+    // Retries after firstRetry, doubling with every attempt up to maxRetry; gives up after maxAttempts
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void markFailed(Long userId, String error, Duration firstRetry, Duration maxRetry, int maxAttempts) {
+        MapSqlParameterSource params = new MapSqlParameterSource("userId", userId)
+                .addValue("error", error == null || error.length() <= MAX_ERROR_LENGTH ? error : error.substring(0, MAX_ERROR_LENGTH))
+                .addValue("firstRetrySeconds", firstRetry.toSeconds())
+                .addValue("maxRetrySeconds", maxRetry.toSeconds())
+                .addValue("maxAttempts", maxAttempts)
+                .addValue("failed", FAILED)
+                .addValue("pending", PENDING);
+        // Assignments run left to right, so attempts is still the old count in the first two
+        jdbcTemplate.update("UPDATE provisioning_task SET " +
+                "next_attempt_at = NOW(6) + INTERVAL LEAST(:firstRetrySeconds * POW(2, attempts), :maxRetrySeconds) SECOND, " +
+                "status = IF(attempts + 1 >= :maxAttempts, :failed, :pending), " +
+                "attempts = attempts + 1, " +
+                "last_error = :error " +
+                "WHERE user_id = :userId", params);
+    }
+
+    public Optional<String> findStatus(Long userId) {
+        return jdbcTemplate.queryForList("SELECT status FROM provisioning_task WHERE user_id = :userId",
+                new MapSqlParameterSource("userId", userId), String.class).stream().findFirst();
+    }
+}
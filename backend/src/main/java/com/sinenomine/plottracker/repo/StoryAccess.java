@@ -0,0 +1,9 @@
+package com.sinenomine.plottracker.repo;
+
+/**
+ * The story something belongs to and who owns it, as read by the findAccess queries of the repositories. Enough to
+ * authorize a request and to attach new rows to the story without loading the Story and Users entities; the owner is
+ * read from the user_id column of the story, so the queries do not touch the users table.
+ */
+public record StoryAccess(Long storyId, Long userId, String dateFormat) {
+}
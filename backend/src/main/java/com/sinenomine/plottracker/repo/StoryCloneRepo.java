@@ -0,0 +1,231 @@
+package com.sinenomine.plottracker.repo;
+
+import com.sinenomine.plottracker.model.TimeOrderedIdGenerator;
+import com.sinenomine.plottracker.repo.StorySnapshot.*;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Copies a story with its tag types, tags, characters, plot events and event tags using one INSERT ... SELECT per
+ * table. The ids of the copies are allocated up front with {@link TimeOrderedIdGenerator} and written to
+ * clone_id_map next to the ids they copy; every INSERT ... SELECT then joins that map to rewrite its ids and
+ * references.
+ * <p>
+ * A story can also be read once into a {@link StorySnapshot} and written out again any number of times with batched
+ * inserts, which is how the demo story is copied for every new user.
+ */
+@Repository
+public class StoryCloneRepo {
+
+    private static final String TAG_TYPE = "tag_type";
+    private static final String TAG = "tag";
+    private static final String CHARACTER = "character";
+    private static final String EVENT = "event";
+
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+
+    public StoryCloneRepo(NamedParameterJdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    // Returns the id of the copy, or null if the source story does not exist
+    @Transactional(propagation = Propagation.MANDATORY)
+    public Long cloneStory(Long sourceStoryId, Long userId) {
+        long cloneId = TimeOrderedIdGenerator.nextId();
+        MapSqlParameterSource params = new MapSqlParameterSource("sourceId", sourceStoryId)
+                .addValue("cloneId", cloneId)
+                .addValue("userId", userId);
+        int inserted = jdbcTemplate.update(
+                "INSERT INTO story (story_id, title, description, date_format, user_id) " +
+                        "SELECT :cloneId, title, description, date_format, :userId FROM story WHERE story_id = :sourceId",
+                params);
+        if (inserted == 0)
+            return null;
+
+        mapIds(TAG_TYPE, "SELECT tag_type_id FROM tag_type WHERE story_id = :sourceId ORDER BY tag_type_id", params);
+        jdbcTemplate.update(
+                "INSERT INTO tag_type (tag_type_id, name, story_id) " +
+                        "SELECT m.new_id, tt.name, :cloneId FROM tag_type tt " +
+                        "JOIN clone_id_map m ON m.clone_story_id = :cloneId AND m.kind = 'tag_type' AND m.old_id = tt.tag_type_id",
+                params);
+
+        mapIds(TAG, "SELECT tag_id FROM tag WHERE story_id = :sourceId ORDER BY tag_id", params);
+        jdbcTemplate.update(
+                "INSERT INTO tag (tag_id, tag_name, color, tag_type_id, story_id) " +
+                        "SELECT m.new_id, t.tag_name, t.color, tt.new_id, :cloneId FROM tag t " +
+                        "JOIN clone_id_map m ON m.clone_story_id = :cloneId AND m.kind = 'tag' AND m.old_id = t.tag_id " +
+                        "JOIN clone_id_map tt ON tt.clone_story_id = :cloneId AND tt.kind = 'tag_type' AND tt.old_id = t.tag_type_id",
+                params);
+
+        mapIds(CHARACTER, "SELECT c.character_id FROM characters c JOIN tag t ON t.tag_id = c.tag_id WHERE t.story_id = :sourceId ORDER BY c.character_id", params);
+        jdbcTemplate.update(
+                "INSERT INTO characters (character_id, short_description, description, image_hash, tag_id) " +
+                        "SELECT m.new_id, c.short_description, c.description, c.image_hash, t.new_id FROM characters c " +
+                        "JOIN clone_id_map m ON m.clone_story_id = :cloneId AND m.kind = 'character' AND m.old_id = c.character_id " +
+                        "JOIN clone_id_map t ON t.clone_story_id = :cloneId AND t.kind = 'tag' AND t.old_id = c.tag_id",
+                params);
+
+        mapIds(EVENT, "SELECT event_id FROM plot_event WHERE story_id = :sourceId ORDER BY event_id", params);
+        jdbcTemplate.update(
+                "INSERT INTO plot_event (event_id, event_type, title, date, date_key, description, content, is_in_plot, position, story_id) " +
+                        "SELECT m.new_id, p.event_type, p.title, p.date, p.date_key, p.description, p.content, p.is_in_plot, p.position, :cloneId " +
+                        "FROM plot_event p " +
+                        "JOIN clone_id_map m ON m.clone_story_id = :cloneId AND m.kind = 'event' AND m.old_id = p.event_id",
+                params);
+
+        // Memory references may point at any event of the story, so they are set once all copies exist
+        jdbcTemplate.update(
+                "UPDATE plot_event p " +
+                        "JOIN clone_id_map e ON e.clone_story_id = :cloneId AND e.kind = 'event' AND e.new_id = p.event_id " +
+                        "JOIN plot_event original ON original.event_id = e.old_id " +
+                        "JOIN clone_id_map ref ON ref.clone_story_id = :cloneId AND ref.kind = 'event' AND ref.old_id = original.memory_ref_id " +
+                        "SET p.memory_ref_id = ref.new_id",
+                params);
+
+        jdbcTemplate.update(
+                "INSERT INTO plot_event_tag (event_id, tag_id) " +
+                        "SELECT e.new_id, t.new_id FROM plot_event_tag pt " +
+                        "JOIN clone_id_map e ON e.clone_story_id = :cloneId AND e.kind = 'event' AND e.old_id = pt.event_id " +
+                        "JOIN clone_id_map t ON t.clone_story_id = :cloneId AND t.kind = 'tag' AND t.old_id = pt.tag_id",
+                params);
+
+        jdbcTemplate.update("DELETE FROM clone_id_map WHERE clone_story_id = :cloneId", params);
+        return cloneId;
+    }
+
+    // Allocates an id for the copy of every row the query returns, in the same order, and stores the pairs in one batch
+    private void mapIds(String kind, String sourceIdsSql, MapSqlParameterSource params) {
+        List<Long> sourceIds = jdbcTemplate.queryForList(sourceIdsSql, params, Long.class);
+        batchUpdate("INSERT INTO clone_id_map (clone_story_id, kind, old_id, new_id) VALUES (:cloneId, :kind, :oldId, :newId)",
+                sourceIds,
+                id -> new MapSqlParameterSource(params.getValues())
+                        .addValue("kind", kind)
+                        .addValue("oldId", id)
+                        .addValue("newId", TimeOrderedIdGenerator.nextId()));
+    }
+
+    // Reads a story and everything that belongs to it, or returns null if it does not exist
+    @Transactional(readOnly = true)
+    public StorySnapshot loadSnapshot(Long storyId) {
+        MapSqlParameterSource params = new MapSqlParameterSource("storyId", storyId);
+        List<String[]> story = jdbcTemplate.query(
+                "SELECT title, description, date_format FROM story WHERE story_id = :storyId", params,
+                (rs, i) -> new String[]{rs.getString("title"), rs.getString("description"), rs.getString("date_format")});
+        if (story.isEmpty())
+            return null;
+
+        List<TagTypeRow> tagTypes = jdbcTemplate.query(
+                "SELECT tag_type_id, name FROM tag_type WHERE story_id = :storyId ORDER BY tag_type_id", params,
+                (rs, i) -> new TagTypeRow(rs.getLong("tag_type_id"), rs.getString("name")));
+        List<TagRow> tags = jdbcTemplate.query(
+                "SELECT tag_id, tag_name, color, tag_type_id FROM tag WHERE story_id = :storyId ORDER BY tag_id", params,
+                (rs, i) -> new TagRow(rs.getLong("tag_id"), rs.getString("tag_name"), rs.getString("color"), rs.getLong("tag_type_id")));
+        List<CharacterRow> characters = jdbcTemplate.query(
+                "SELECT c.tag_id, c.short_description, c.description, c.image_hash FROM characters c " +
+                        "JOIN tag t ON t.tag_id = c.tag_id WHERE t.story_id = :storyId ORDER BY c.character_id", params,
+                (rs, i) -> new CharacterRow(rs.getLong("tag_id"), rs.getString("short_description"), rs.getString("description"),
+                        rs.getString("image_hash")));
+        List<EventRow> events = jdbcTemplate.query(
+                "SELECT event_id, event_type, title, date, date_key, description, content, is_in_plot, position, memory_ref_id " +
+                        "FROM plot_event WHERE story_id = :storyId ORDER BY event_id", params,
+                (rs, i) -> new EventRow(rs.getLong("event_id"), rs.getString("event_type"), rs.getString("title"),
+                        rs.getString("date"), rs.getObject("date_key", Long.class), rs.getString("description"),
+                        rs.getString("content"), rs.getObject("is_in_plot", Boolean.class),
+                        rs.getObject("position", Long.class), rs.getObject("memory_ref_id", Long.class)));
+        List<EventTagRow> eventTags = jdbcTemplate.query(
+                "SELECT pt.event_id, pt.tag_id FROM plot_event_tag pt " +
+                        "JOIN plot_event p ON p.event_id = pt.event_id WHERE p.story_id = :storyId", params,
+                (rs, i) -> new EventTagRow(rs.getLong("event_id"), rs.getLong("tag_id")));
+
+        return new StorySnapshot(story.get(0)[0], story.get(0)[1], story.get(0)[2],
+                tagTypes, tags, characters, events, eventTags);
+    }
+
+    // Writes a copy of the snapshot for the given user with one batch per table; returns the id of the copy
+    @Transactional(propagation = Propagation.MANDATORY)
+    public Long insertSnapshot(StorySnapshot snapshot, Long userId) {
+        long cloneId = TimeOrderedIdGenerator.nextId();
+        jdbcTemplate.update(
+                "INSERT INTO story (story_id, title, description, date_format, user_id) " +
+                        "VALUES (:storyId, :title, :description, :dateFormat, :userId)",
+                new MapSqlParameterSource("storyId", cloneId)
+                        .addValue("title", snapshot.title())
+                        .addValue("description", snapshot.description())
+                        .addValue("dateFormat", snapshot.dateFormat())
+                        .addValue("userId", userId));
+
+        Map<Long, Long> tagTypeIds = newIds(snapshot.tagTypes().stream().map(TagTypeRow::tagTypeId).toList());
+        batchUpdate("INSERT INTO tag_type (tag_type_id, name, story_id) VALUES (:tagTypeId, :name, :storyId)",
+                snapshot.tagTypes(),
+                t -> new MapSqlParameterSource("tagTypeId", tagTypeIds.get(t.tagTypeId()))
+                        .addValue("name", t.name())
+                        .addValue("storyId", cloneId));
+
+        Map<Long, Long> tagIds = newIds(snapshot.tags().stream().map(TagRow::tagId).toList());
+        batchUpdate("INSERT INTO tag (tag_id, tag_name, color, tag_type_id, story_id) " +
+                        "VALUES (:tagId, :tagName, :color, :tagTypeId, :storyId)",
+                snapshot.tags(),
+                t -> new MapSqlParameterSource("tagId", tagIds.get(t.tagId()))
+                        .addValue("tagName", t.tagName())
+                        .addValue("color", t.color())
+                        .addValue("tagTypeId", tagTypeIds.get(t.tagTypeId()))
+                        .addValue("storyId", cloneId));
+
+        batchUpdate("INSERT INTO characters (character_id, short_description, description, image_hash, tag_id) " +
+                        "VALUES (:characterId, :shortDescription, :description, :imageHash, :tagId)",
+                snapshot.characters(),
+                c -> new MapSqlParameterSource("characterId", TimeOrderedIdGenerator.nextId())
+                        .addValue("shortDescription", c.shortDescription())
+                        .addValue("description", c.description())
+                        .addValue("imageHash", c.imageHash())
+                        .addValue("tagId", tagIds.get(c.tagId())));
+
+        Map<Long, Long> eventIds = newIds(snapshot.events().stream().map(EventRow::eventId).toList());
+        batchUpdate("INSERT INTO plot_event (event_id, event_type, title, date, date_key, description, content, is_in_plot, position, story_id) " +
+                        "VALUES (:eventId, :eventType, :title, :date, :dateKey, :description, :content, :inPlot, :position, :storyId)",
+                snapshot.events(),
+                e -> new MapSqlParameterSource("eventId", eventIds.get(e.eventId()))
+                        .addValue("eventType", e.eventType())
+                        .addValue("title", e.title())
+                        .addValue("date", e.date())
+                        .addValue("dateKey", e.dateKey())
+                        .addValue("description", e.description())
+                        .addValue("content", e.content())
+                        .addValue("inPlot", e.inPlot())
+                        .addValue("position", e.position())
+                        .addValue("storyId", cloneId));
+
+        batchUpdate("UPDATE plot_event SET memory_ref_id = :memoryRefId WHERE event_id = :eventId",
+                snapshot.events().stream().filter(e -> e.memoryRefId() != null).toList(),
+                e -> new MapSqlParameterSource("memoryRefId", eventIds.get(e.memoryRefId()))
+                        .addValue("eventId", eventIds.get(e.eventId())));
+
+        batchUpdate("INSERT INTO plot_event_tag (event_id, tag_id) VALUES (:eventId, :tagId)",
+                snapshot.eventTags(),
+                et -> new MapSqlParameterSource("eventId", eventIds.get(et.eventId()))
+                        .addValue("tagId", tagIds.get(et.tagId())));
+        return cloneId;
+    }
+
+    private static Map<Long, Long> newIds(List<Long> sourceIds) {
+        Map<Long, Long> ids = new HashMap<>();
+        for (Long sourceId : sourceIds) {
+            ids.put(sourceId, TimeOrderedIdGenerator.nextId());
+        }
+        return ids;
+    }
+
+    private <T> void batchUpdate(String sql, List<T> rows, Function<T, SqlParameterSource> params) {
+        if (!rows.isEmpty())
+            jdbcTemplate.batchUpdate(sql, rows.stream().map(params).toArray(SqlParameterSource[]::new));
+    }
+}
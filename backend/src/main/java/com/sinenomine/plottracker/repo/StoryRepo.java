@@ -3,17 +3,36 @@ package com.sinenomine.plottracker.repo;
 import com.sinenomine.plottracker.dto.StoryResponseDto;
 import com.sinenomine.plottracker.model.Story;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 
 import java.util.List;
+import java.util.Optional;
 import java.util.Set;
 
 public interface StoryRepo extends JpaRepository<Story, Long> {
 
-    @Query("select s from Story s where s.user.username = :username")
-    Set<Story> findByUser(String username);
+    @Query("select s from Story s where s.user.userId = :userId")
+    Set<Story> findByUser(Long userId);
 
     @Query("SELECT new com.sinenomine.plottracker.dto.StoryResponseDto(s.storyId, s.title, s.description, s.dateFormat) " +
-            "FROM Story s WHERE s.user.username = :username")
-    List<StoryResponseDto> findByUserResponses(String username);
+            "FROM Story s WHERE s.user.userId = :userId")
+    List<StoryResponseDto> findByUserResponses(Long userId);
+
+    @Query("SELECT new com.sinenomine.plottracker.repo.StoryAccess(s.storyId, s.user.userId, s.dateFormat) " +
+            "FROM Story s WHERE s.storyId = :storyId")
+    Optional<StoryAccess> findAccess(Long storyId);
+
+    @Query("SELECT s.version FROM Story s WHERE s.storyId = :storyId")
+    Optional<Long> findVersion(Long storyId);
+
+    // Without loading the story first; the pending deletes of its contents are flushed before
+    @Modifying(flushAutomatically = true)
+    @Query("DELETE FROM Story s WHERE s.storyId = :storyId")
+    int deleteByStoryId(Long storyId);
+
+    // Called by every change to the story, its plot events, tags and tag types, in the transaction of the change
+    @Modifying
+    @Query(value = "UPDATE story SET version = version + 1 WHERE story_id = :storyId", nativeQuery = true)
+    int incrementVersion(Long storyId);
 }
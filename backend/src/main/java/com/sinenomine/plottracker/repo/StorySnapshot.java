@@ -0,0 +1,42 @@
+package com.sinenomine.plottracker.repo;
+
+import java.util.List;
+
+/**
+ * Immutable copy of a story and everything that belongs to it, as read by {@link StoryCloneRepo#loadSnapshot}.
+ * Ids are the ones of the source story; {@link StoryCloneRepo#insertSnapshot} maps them to the ids of the copy.
+ */
+public record StorySnapshot(String title,
+                            String description,
+                            String dateFormat,
+                            List<TagTypeRow> tagTypes,
+                            List<TagRow> tags,
+                            List<CharacterRow> characters,
+                            List<EventRow> events,
+                            List<EventTagRow> eventTags) {
+
+    public StorySnapshot {
+        tagTypes = List.copyOf(tagTypes);
+        tags = List.copyOf(tags);
+        characters = List.copyOf(characters);
+        events = List.copyOf(events);
+        eventTags = List.copyOf(eventTags);
+    }
+
+    public record TagTypeRow(long tagTypeId, String name) {
+    }
+
+    public record TagRow(long tagId, String tagName, String color, long tagTypeId) {
+    }
+
+    // Copies share the image row of the original through its hash
+    public record CharacterRow(long tagId, String shortDescription, String description, String imageHash) {
+    }
+
+    public record EventRow(long eventId, String eventType, String title, String date, Long dateKey, String description,
+                           String content, Boolean inPlot, Long position, Long memoryRefId) {
+    }
+
+    public record EventTagRow(long eventId, long tagId) {
+    }
+}
@@ -4,10 +4,12 @@ import com.sinenomine.plottracker.dto.TagResponseDto;
 import com.sinenomine.plottracker.model.Tag;
 import com.sinenomine.plottracker.model.Story;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
+import java.util.Optional;
 import java.util.Set;
 
 @Repository
@@ -17,10 +19,23 @@ public interface TagRepo extends JpaRepository<Tag, Long> {
     List<Tag> findByStory_StoryId(Long StoryId);
 
     @Query("SELECT new com.sinenomine.plottracker.dto.TagResponseDto(t.tagId, t.tagName, t.tagType.tagTypeId, t.tagType.name, t.color) " +
-            "FROM Tag t WHERE t.story = :story")
-    List<TagResponseDto> findByStoryResponses(Story story);
+            "FROM Tag t WHERE t.story.storyId = :storyId")
+    List<TagResponseDto> findByStoryResponses(Long storyId);
+
+    @Query("SELECT new com.sinenomine.plottracker.dto.TagResponseDto(t.tagId, t.tagName, t.tagType.tagTypeId, t.tagType.name, t.color) " +
+            "FROM Tag t WHERE t.tagId = :tagId")
+    TagResponseDto findResponseById(Long tagId);
+
+    @Query("SELECT new com.sinenomine.plottracker.repo.StoryAccess(s.storyId, s.user.userId, s.dateFormat) " +
+            "FROM Tag t JOIN t.story s WHERE t.tagId = :tagId")
+    Optional<StoryAccess> findAccess(Long tagId);
 
     long deleteByStory_StoryId(Long storyId);
 
-    long deleteByTagType_TagTypeId(Long tagTypeId);
+    // Without loading the tag first; pending deletes of its character are flushed before
+    @Modifying(flushAutomatically = true)
+    @Query("DELETE FROM Tag t WHERE t.tagId = :tagId")
+    int deleteByTagId(Long tagId);
+
+    List<Tag> deleteByTagType_TagTypeId(Long tagTypeId);
 }
@@ -9,6 +9,7 @@ import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
+import java.util.Optional;
 import java.util.Set;
 
 @Repository
@@ -18,8 +19,12 @@ public interface TagTypeRepo extends JpaRepository<TagType, Long> {
     List<TagType> findByStory_StoryId(Long StoryId);
 
     @Query("SELECT new com.sinenomine.plottracker.dto.TagTypeResponseDto(t.tagTypeId, t.name) " +
-            "FROM TagType t WHERE t.story = :story")
-    List<TagTypeResponseDto> findByStoryResponses(Story story);
+            "FROM TagType t WHERE t.story.storyId = :storyId")
+    List<TagTypeResponseDto> findByStoryResponses(Long storyId);
+
+    @Query("SELECT new com.sinenomine.plottracker.repo.StoryAccess(s.storyId, s.user.userId, s.dateFormat) " +
+            "FROM TagType t JOIN t.story s WHERE t.tagTypeId = :tagTypeId")
+    Optional<StoryAccess> findAccess(Long tagTypeId);
 
     long deleteByStory_StoryId(Long storyId);
 }
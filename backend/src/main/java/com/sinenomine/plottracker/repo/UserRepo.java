@@ -2,9 +2,15 @@ package com.sinenomine.plottracker.repo;
 
 import com.sinenomine.plottracker.model.Users;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.util.Optional;
+
 @Repository
 public interface UserRepo extends JpaRepository<Users, Long> {
     Users findByUsername(String username);
+
+    @Query("SELECT u.tokenVersion FROM Users u WHERE u.userId = :userId")
+    Optional<Integer> findTokenVersion(Long userId);
 }
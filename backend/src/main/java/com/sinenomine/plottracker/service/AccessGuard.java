@@ -0,0 +1,161 @@
+package com.sinenomine.plottracker.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.sinenomine.plottracker.exception.ResourceNotFoundException;
+import com.sinenomine.plottracker.exception.UnauthorizedException;
+import com.sinenomine.plottracker.repo.*;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * Answers whether a user owns a story, or the story a plot event, tag or tag type belongs to. Each check is a single
+ * select of ids along primary keys, compared with the user id of the access token, so the services only load the
+ * entities they are going to return or change and attach everything else with getReferenceById. Missing rows are reported with
+ * {@link ResourceNotFoundException}, rows of other users or other stories with {@link UnauthorizedException}.
+ * <p>
+ * The answers are cached: a story never changes owner and nothing moves between stories, so entries only have to go
+ * when rows are deleted or an account is closed. The services report those through the evict methods; the entries are
+ * dropped right away and once more when the transaction completes, so a check running in between cannot put them
+ * back for good.
+ */
+@Component
+public class AccessGuard {
+    private static final long MAX_STORIES = 10_000;
+    private static final long MAX_ENTITIES = 100_000;
+
+    private final StoryRepo storyRepo;
+    private final PlotEventRepo plotEventRepo;
+    private final TagRepo tagRepo;
+    private final TagTypeRepo tagTypeRepo;
+
+    // storyId -> the story's owner
+    private final Cache<Long, StoryAccess> stories;
+    // Ids of plot events, tags and tag types -> id of their story
+    private final Cache<Long, Long> eventStories;
+    private final Cache<Long, Long> tagStories;
+    private final Cache<Long, Long> tagTypeStories;
+
+    public AccessGuard(StoryRepo storyRepo, PlotEventRepo plotEventRepo, TagRepo tagRepo, TagTypeRepo tagTypeRepo,
+                       MeterRegistry meterRegistry) {
+        this.storyRepo = storyRepo;
+        this.plotEventRepo = plotEventRepo;
+        this.tagRepo = tagRepo;
+        this.tagTypeRepo = tagTypeRepo;
+        this.stories = monitoredCache(meterRegistry, "access.stories", MAX_STORIES);
+        this.eventStories = monitoredCache(meterRegistry, "access.plotevents", MAX_ENTITIES);
+        this.tagStories = monitoredCache(meterRegistry, "access.tags", MAX_ENTITIES);
+        this.tagTypeStories = monitoredCache(meterRegistry, "access.tagtypes", MAX_ENTITIES);
+    }
+
+    public StoryAccess checkStory(Long storyId, Long userId) {
+        StoryAccess access = stories.get(storyId, id -> storyRepo.findAccess(id).orElse(null));
+        if (access == null)
+            throw new ResourceNotFoundException("Story not found");
+        requireOwner(access, userId, "Unauthorized access to story");
+        return access;
+    }
+
+    public StoryAccess checkPlotEvent(Long eventId, Long userId) {
+        StoryAccess access = findAccess(eventStories, eventId, plotEventRepo::findAccess, "Plot event not found");
+        requireOwner(access, userId, "Unauthorized access to plot event");
+        return access;
+    }
+
+    // A tag of the given story, which the user owns
+    public StoryAccess checkTag(Long storyId, Long tagId, Long userId) {
+        StoryAccess access = findAccess(tagStories, tagId, tagRepo::findAccess, "Tag not found");
+        requireOwner(access, userId, "Unauthorized access to tag");
+        requireStory(access, storyId, "Unauthorized access to tag");
+        return access;
+    }
+
+    // A tag type of the given story, which the user owns
+    public StoryAccess checkTagType(Long storyId, Long tagTypeId, Long userId) {
+        StoryAccess access = findAccess(tagTypeStories, tagTypeId, tagTypeRepo::findAccess, "TagType not found");
+        requireOwner(access, userId, "Unauthorized access to tag type");
+        requireStory(access, storyId, "Unauthorized access to tag type");
+        return access;
+    }
+
+    // The story is deleted together with everything in it
+    public void evictStory(Long storyId) {
+        evict(() -> {
+            stories.invalidate(storyId);
+            evictEntitiesOfNow(storyId);
+        });
+    }
+
+    // For deletes that cascade to other rows of the story, such as a plot event taking its memory reference along
+    public void evictEntitiesOf(Long storyId) {
+        evict(() -> evictEntitiesOfNow(storyId));
+    }
+
+    public void evictTag(Long tagId) {
+        evict(() -> tagStories.invalidate(tagId));
+    }
+
+    public void evictTagType(Long tagTypeId) {
+        evict(() -> tagTypeStories.invalidate(tagTypeId));
+    }
+
+    // The stories of a closed account stay in the database but will not be asked for again
+    public void evictUser(Long userId) {
+        evict(() -> stories.asMap().values().removeIf(access -> access.userId().equals(userId)));
+    }
+
+    private StoryAccess findAccess(Cache<Long, Long> storyIds, Long id, Function<Long, Optional<StoryAccess>> loader,
+                                   String notFound) {
+        Long storyId = storyIds.getIfPresent(id);
+        if (storyId != null) {
+            StoryAccess access = stories.get(storyId, key -> storyRepo.findAccess(key).orElse(null));
+            if (access != null)
+                return access;
+        }
+        StoryAccess access = loader.apply(id)
+                .orElseThrow(() -> new ResourceNotFoundException(notFound));
+        storyIds.put(id, access.storyId());
+        stories.put(access.storyId(), access);
+        return access;
+    }
+
+    private void evictEntitiesOfNow(Long storyId) {
+        eventStories.asMap().values().removeIf(storyId::equals);
+        tagStories.asMap().values().removeIf(storyId::equals);
+        tagTypeStories.asMap().values().removeIf(storyId::equals);
+    }
+
+    private static void evict(Runnable eviction) {
+        eviction.run();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    eviction.run();
+                }
+            });
+        }
+    }
+
+    // Hits and misses show up as cache.gets in the metrics, tagged with the name
+    private static <V> Cache<Long, V> monitoredCache(MeterRegistry meterRegistry, String name, long maximumSize) {
+        Cache<Long, V> cache = Caffeine.newBuilder().maximumSize(maximumSize).recordStats().build();
+        return CaffeineCacheMetrics.monitor(meterRegistry, cache, name);
+    }
+
+    private static void requireOwner(StoryAccess access, Long userId, String message) {
+        if (!access.userId().equals(userId))
+            throw new UnauthorizedException(message);
+    }
+
+    private static void requireStory(StoryAccess access, Long storyId, String message) {
+        if (!access.storyId().equals(storyId))
+            throw new UnauthorizedException(message);
+    }
+}
@@ -0,0 +1,156 @@
+package com.sinenomine.plottracker.service;
+
+import com.sinenomine.plottracker.exception.ResourceNotFoundException;
+import com.sinenomine.plottracker.exception.TooManyRequestsException;
+import com.sinenomine.plottracker.model.CharacterImage;
+import com.sinenomine.plottracker.repo.CharacterImageRepo;
+import com.sinenomine.plottracker.repo.CharacterRepo;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Keeps character_image and the files in the {@link ImageStore} in step with the characters that use them. Every
+ * character with an image holds one reference; an image whose count drops to zero loses its row right away and its
+ * file once the transaction has committed.
+ */
+@Service
+public class CharacterImageService {
+
+    private final CharacterImageRepo characterImageRepo;
+    private final CharacterRepo characterRepo;
+    private final ImageStore imageStore;
+    private final ImageDerivatives imageDerivatives;
+    private final Semaphore uploadPermits;
+    private final Counter rejectedUploads;
+    // Runs after the commit of the transaction that dropped the rows, so it needs a transaction of its own
+    private final TransactionTemplate fileDeletion;
+
+    public CharacterImageService(CharacterImageRepo characterImageRepo, CharacterRepo characterRepo,
+                                 ImageStore imageStore, ImageDerivatives imageDerivatives,
+                                 @Value("${plottracker.images.max-concurrent-uploads}") int maxConcurrentUploads,
+                                 PlatformTransactionManager transactionManager, MeterRegistry meterRegistry) {
+        this.characterImageRepo = characterImageRepo;
+        this.characterRepo = characterRepo;
+        this.imageStore = imageStore;
+        this.imageDerivatives = imageDerivatives;
+        this.uploadPermits = new Semaphore(maxConcurrentUploads);
+        this.rejectedUploads = Counter.builder("plottracker.images.uploads.rejected")
+                .description("Image uploads turned away because the concurrent upload limit was reached")
+                .register(meterRegistry);
+        this.fileDeletion = new TransactionTemplate(transactionManager);
+        this.fileDeletion.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    // Stores the uploaded image without a reference; the caller attaches it to a character with addReference.
+    // Turns the upload away when too many are already being written, rather than queueing more of them on the heap.
+    @Transactional(propagation = Propagation.MANDATORY)
+    public String store(InputStream data) {
+        if (!uploadPermits.tryAcquire()) {
+            rejectedUploads.increment();
+            throw new TooManyRequestsException("Too many image uploads in progress, please try again");
+        }
+        ImageStore.StagedImage image;
+        try {
+            image = imageStore.stage(data);
+        } finally {
+            uploadPermits.release();
+        }
+        try {
+            // The insert waits for a deletion of the same image that is in progress (see deleteUnreferenced), so the
+            // file is put in place after that deletion and not before it
+            characterImageRepo.insertIfAbsent(image.hash(), image.contentType(), image.size());
+            imageStore.publish(image);
+        } finally {
+            imageStore.discard(image);
+        }
+        imageDerivatives.schedule(image.hash());
+        return image.hash();
+    }
+
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void addReference(String imageHash) {
+        characterImageRepo.addReferences(imageHash, 1);
+    }
+
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void releaseReference(String imageHash) {
+        characterImageRepo.addReferences(imageHash, -1);
+        deleteUnreferenced(List.of(imageHash));
+    }
+
+    // For a story that was just copied, count the references of its characters
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void addStoryReferences(Long storyId) {
+        characterImageRepo.addStoryReferences(storyId, 1);
+    }
+
+    // For a story that is about to be deleted, drop the references of its characters
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void releaseStoryReferences(Long storyId) {
+        List<String> imageHashes = characterRepo.findImageHashesByStoryId(storyId);
+        if (imageHashes.isEmpty())
+            return;
+        characterImageRepo.addStoryReferences(storyId, -1);
+        deleteUnreferenced(imageHashes);
+    }
+
+    public CharacterImage getImage(String imageHash) {
+        return characterImageRepo.findById(imageHash)
+                .orElseThrow(() -> new ResourceNotFoundException("Image not found"));
+    }
+
+    public Path getImageFile(String imageHash) {
+        return imageStore.path(imageHash);
+    }
+
+    // The copy of the image scaled to the given size, or empty while it is not made yet
+    public Optional<ImageDerivatives.Derivative> getDerivative(String imageHash, String size) {
+        Integer pixels = null;
+        try {
+            pixels = Integer.valueOf(size);
+        } catch (NumberFormatException e) {
+            // Handled below like any other size that is not offered
+        }
+        if (pixels == null || !ImageDerivatives.SIZES.contains(pixels))
+            throw new ResourceNotFoundException("Image size not available");
+
+        Optional<ImageDerivatives.Derivative> derivative = imageDerivatives.find(imageHash, pixels);
+        if (derivative.isEmpty())
+            imageDerivatives.schedule(imageHash);
+        return derivative;
+    }
+
+    private void deleteUnreferenced(Collection<String> imageHashes) {
+        characterImageRepo.deleteUnreferenced(imageHashes);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                // An upload of the same content may bring the row back at any time. The file goes only while the
+                // row is locked as missing, which holds off such an upload until the file is gone; the upload then
+                // puts its own copy in place.
+                for (String imageHash : imageHashes) {
+                    fileDeletion.executeWithoutResult(status -> {
+                        if (characterImageRepo.countForUpdate(imageHash) == 0)
+                            imageStore.delete(imageHash);
+                    });
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,74 @@
+package com.sinenomine.plottracker.service;
+
+/**
+ * Turns a story date such as "1500.01.01" into a number that sorts the same way the dates do.
+ * <p>
+ * A story's dateFormat lists the largest value of every dot separated segment, e.g. "9999.12.31". Each segment after
+ * the first is treated as a digit in base (max + 1), so the key is monotonic in the date. Every date of the story is
+ * read against all segments of the format: missing trailing segments count as 0, so "1500" sorts right before
+ * "1500.01.01", and dates with more segments than the format are not accepted. Without a usable format the dates are
+ * read as "9999.99.99", a fixed base of 100 for the segments after the first, whatever their width.
+ */
+public final class DateKeyParser {
+
+    private static final long[] DEFAULT_MAXIMA = {Long.MAX_VALUE, 99, 99};
+
+    private DateKeyParser() {
+    }
+
+    // Returns null for blank or unparsable dates, which then sort with the undated events
+    public static Long toSortKey(String date, String dateFormat) {
+        if (date == null || date.isBlank())
+            return null;
+        String[] segments = date.trim().split("[^0-9]+");
+        long[] maxima = maxima(dateFormat);
+        if (segments.length > maxima.length)
+            return null;
+        try {
+            long key = 0;
+            for (int i = 0; i < maxima.length; i++) {
+                long value = 0;
+                if (i < segments.length) {
+                    if (segments[i].isEmpty())
+                        return null;
+                    value = Long.parseLong(segments[i]);
+                }
+                if (i == 0) {
+                    key = value;
+                    continue;
+                }
+                if (value > maxima[i])
+                    return null;
+                key = Math.addExact(Math.multiplyExact(key, Math.incrementExact(maxima[i])), value);
+            }
+            return key;
+        } catch (NumberFormatException | ArithmeticException e) {
+            return null;
+        }
+    }
+
+    // The first segment is unbounded, so only the maxima after it are read from the format
+    private static long[] maxima(String dateFormat) {
+        if (dateFormat == null || dateFormat.isBlank())
+            return DEFAULT_MAXIMA;
+        String[] formatSegments = dateFormat.trim().split("\\.");
+        long[] maxima = new long[formatSegments.length];
+        maxima[0] = Long.MAX_VALUE;
+        for (int i = 1; i < formatSegments.length; i++) {
+            Long max = parseMax(formatSegments[i]);
+            if (max == null)
+                return DEFAULT_MAXIMA;
+            maxima[i] = max;
+        }
+        return maxima;
+    }
+
+    private static Long parseMax(String formatSegment) {
+        try {
+            long max = Long.parseLong(formatSegment);
+            return max > 0 ? max : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
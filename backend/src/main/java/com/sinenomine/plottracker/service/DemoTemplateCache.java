@@ -0,0 +1,68 @@
+package com.sinenomine.plottracker.service;
+
+import com.sinenomine.plottracker.repo.StoryCloneRepo;
+import com.sinenomine.plottracker.repo.StorySnapshot;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Keeps the demo story that every new user gets a copy of in memory, so registrations only write. The services that
+ * modify a story call {@link #evict(Long)} inside their transaction; the snapshot is dropped right away and once more
+ * after that transaction completes, so a registration running in between cannot keep the old content around.
+ */
+@Component
+public class DemoTemplateCache {
+    static final Long DEMO_TEMPLATE_ID = 1L;
+
+    private final StoryCloneRepo storyCloneRepo;
+
+    private volatile StorySnapshot snapshot;
+    // Bumped by every eviction, so a snapshot read before an eviction is never stored after it
+    private long generation;
+
+    public DemoTemplateCache(StoryCloneRepo storyCloneRepo) {
+        this.storyCloneRepo = storyCloneRepo;
+    }
+
+    public StorySnapshot get() {
+        StorySnapshot current = snapshot;
+        if (current != null)
+            return current;
+
+        long loadedGeneration;
+        synchronized (this) {
+            loadedGeneration = generation;
+        }
+        current = storyCloneRepo.loadSnapshot(DEMO_TEMPLATE_ID);
+        if (current == null)
+            throw new IllegalStateException("Demo template missing");
+        synchronized (this) {
+            if (generation == loadedGeneration)
+                snapshot = current;
+        }
+        return current;
+    }
+
+    // Drop the snapshot if the given story is the demo template. Only a caller's transaction tells when its change
+    // has become visible, so evicting without one is refused rather than left to the first clear alone
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void evict(Long storyId) {
+        if (!DEMO_TEMPLATE_ID.equals(storyId))
+            return;
+        clear();
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                clear();
+            }
+        });
+    }
+
+    private synchronized void clear() {
+        generation++;
+        snapshot = null;
+    }
+}
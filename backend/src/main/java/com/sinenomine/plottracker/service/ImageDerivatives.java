@@ -0,0 +1,199 @@
+package com.sinenomine.plottracker.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scaled-down copies of character images, so the story page does not download and decode full uploads for its
+ * avatars. A small pool with a bounded queue makes a JPEG (PNG when the image has transparency) for each of
+ * {@link #SIZES} after every upload and puts it next to the original in the {@link ImageStore}. Uploads that find
+ * the queue full, and images stored before the copies existed, are picked up the first time a copy is asked for.
+ */
+@Component
+public class ImageDerivatives {
+    public static final List<Integer> SIZES = List.of(64, 256);
+
+    private static final int THREADS = 2;
+    private static final int QUEUE_CAPACITY = 64;
+    // Images with more pixels are not decoded at all, so a small upload cannot unpack into gigabytes of memory
+    private static final long MAX_PIXELS = 40_000_000L;
+
+    private final Logger log = LoggerFactory.getLogger(ImageDerivatives.class);
+
+    private final ImageStore imageStore;
+    private final ThreadPoolExecutor executor;
+    // Hashes queued or in progress, so repeated requests for a missing copy do not queue the same work again
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    // Hashes that ImageIO cannot decode; these are only ever served as uploaded
+    private final Set<String> unsupported = ConcurrentHashMap.newKeySet();
+
+    public ImageDerivatives(ImageStore imageStore) {
+        this.imageStore = imageStore;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(THREADS, THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "image-derivatives-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    public record Derivative(String eTag, Path file, String contentType, long size) {
+    }
+
+    private enum Format {
+        JPEG("jpg", "image/jpeg"),
+        PNG("png", "image/png");
+
+        final String extension;
+        final String contentType;
+
+        Format(String extension, String contentType) {
+            this.extension = extension;
+            this.contentType = contentType;
+        }
+    }
+
+    // Queues the copies of the image unless they are already queued; gives up quietly when the queue is full
+    public void schedule(String imageHash) {
+        if (unsupported.contains(imageHash) || !pending.add(imageHash))
+            return;
+        try {
+            executor.execute(() -> {
+                try {
+                    generate(imageHash);
+                } catch (RuntimeException e) {
+                    log.warn("Could not scale image {}", imageHash, e);
+                } finally {
+                    pending.remove(imageHash);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(imageHash);
+        }
+    }
+
+    public Optional<Derivative> find(String imageHash, int size) {
+        for (Format format : Format.values()) {
+            Path file = imageStore.derivativePath(imageHash, size, format.extension);
+            try {
+                return Optional.of(new Derivative(imageHash + "-" + size, file, format.contentType, Files.size(file)));
+            } catch (NoSuchFileException e) {
+                // Not made yet, or made in the other format
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return Optional.empty();
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void generate(String imageHash) {
+        Path original = imageStore.path(imageHash);
+        if (!Files.exists(original))
+            return;
+        BufferedImage image;
+        try {
+            image = read(original);
+        } catch (IOException e) {
+            log.warn("Could not decode image {}", imageHash, e);
+            image = null;
+        }
+        if (image == null) {
+            unsupported.add(imageHash);
+            return;
+        }
+
+        boolean alpha = image.getColorModel().hasAlpha();
+        Format format = alpha ? Format.PNG : Format.JPEG;
+        for (int size : SIZES) {
+            Path target = imageStore.derivativePath(imageHash, size, format.extension);
+            if (Files.exists(target))
+                continue;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                ImageIO.write(scale(image, size, alpha), format.name(), out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            imageStore.write(target, out.toByteArray());
+        }
+    }
+
+    private static BufferedImage read(Path file) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file.toFile())) {
+            if (input == null)
+                return null;
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext())
+                return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                if ((long) reader.getWidth(0) * reader.getHeight(0) > MAX_PIXELS)
+                    return null;
+                return reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // Fits the image into size x size without enlarging it. Large images are halved step by step first, since a
+    // single bilinear pass skips most of their pixels and comes out grainy.
+    private static BufferedImage scale(BufferedImage image, int size, boolean alpha) {
+        double factor = Math.min(1.0, (double) size / Math.max(image.getWidth(), image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * factor));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * factor));
+
+        BufferedImage current = image;
+        int currentWidth = image.getWidth();
+        int currentHeight = image.getHeight();
+        do {
+            currentWidth = Math.max(width, currentWidth / 2);
+            currentHeight = Math.max(height, currentHeight / 2);
+            BufferedImage next = new BufferedImage(currentWidth, currentHeight,
+                    alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = next.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                graphics.drawImage(current, 0, 0, currentWidth, currentHeight, null);
+            } finally {
+                graphics.dispose();
+            }
+            current = next;
+        } while (currentWidth != width || currentHeight != height);
+        return current;
+    }
+}
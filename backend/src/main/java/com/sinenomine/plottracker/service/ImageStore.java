@@ -0,0 +1,214 @@
+package com.sinenomine.plottracker.service;
+
+import com.sinenomine.plottracker.exception.InvalidImageException;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Content-addressed image files on local disk under plottracker.images.dir. Every distinct content is written once,
+ * to ab/cd/abcd... after its SHA-256, so files never change once they exist; scaled copies made by
+ * {@link ImageDerivatives} sit next to it. Which files are still needed is tracked by the reference counts in
+ * character_image.
+ */
+@Component
+public class ImageStore {
+
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final Path root;
+    // Uploads are spooled here first; same file system as the store, so moving them into place is atomic
+    private final Path staging;
+    private final AtomicLong bytesInFlight = new AtomicLong();
+
+    public ImageStore(@Value("${plottracker.images.dir}") String dir, MeterRegistry meterRegistry) throws IOException {
+        this.root = Paths.get(dir).toAbsolutePath();
+        this.staging = root.resolve("tmp");
+        Files.createDirectories(staging);
+        removeAbandonedUploads();
+        Gauge.builder("plottracker.images.upload.bytes.in.flight", bytesInFlight, AtomicLong::get)
+                .description("Bytes of image uploads received so far that are still being written")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    // An upload spooled to the staging directory and hashed, but not yet in the store
+    public record StagedImage(Path file, String hash, String contentType, long size) {
+    }
+
+    // Streams an upload to disk in fixed-size chunks, hashing it on the way; only the first chunk is held to check
+    // that the content is an image. The caller puts it in place with publish and removes the spooled file with discard.
+    public StagedImage stage(InputStream data) {
+        Path temp = null;
+        long size = 0;
+        boolean staged = false;
+        try {
+            temp = Files.createTempFile(staging, "upload", ".tmp");
+            MessageDigest digest = sha256Digest();
+            byte[] buffer = new byte[CHUNK_SIZE];
+            String contentType;
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                int read = data.readNBytes(buffer, 0, buffer.length);
+                contentType = detectContentType(buffer, read);
+                if (contentType == null)
+                    throw new InvalidImageException("Only PNG, JPEG, GIF and WebP images can be uploaded");
+                while (read > 0) {
+                    digest.update(buffer, 0, read);
+                    out.write(buffer, 0, read);
+                    size += read;
+                    bytesInFlight.addAndGet(read);
+                    read = data.read(buffer);
+                }
+            }
+            staged = true;
+            return new StagedImage(temp, HexFormat.of().formatHex(digest.digest()), contentType, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not store uploaded image", e);
+        } finally {
+            bytesInFlight.addAndGet(-size);
+            if (temp != null && !staged)
+                deleteQuietly(temp);
+        }
+    }
+
+    // Moves the staged upload into place unless identical content is already stored. Also restores a file that was
+    // deleted after the content was last stored.
+    public void publish(StagedImage image) {
+        Path target = path(image.hash());
+        if (Files.exists(target))
+            return;
+        try {
+            Files.createDirectories(target.getParent());
+            Files.move(image.file(), target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not store uploaded image", e);
+        }
+    }
+
+    public void discard(StagedImage image) {
+        deleteQuietly(image.file());
+    }
+
+    // Writes the image unless identical content is already stored; returns its hash
+    public String put(byte[] data) {
+        String hash = sha256(data);
+        Path target = path(hash);
+        if (!Files.exists(target))
+            write(target, data);
+        return hash;
+    }
+
+    // Scaled copies of an image live next to it as abcd...-<size>.<extension>
+    public Path derivativePath(String hash, int size, String extension) {
+        return path(hash).resolveSibling(hash + "-" + size + "." + extension);
+    }
+
+    public void write(Path target, byte[] data) {
+        try {
+            Files.createDirectories(target.getParent());
+            // Readers only ever see complete files: write next to the target and move it into place.
+            // A concurrent write of the same content just replaces the file with identical bytes.
+            Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+            try {
+                Files.write(temp, data);
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not store image " + target.getFileName(), e);
+        }
+    }
+
+    public Path path(String hash) {
+        if (!HASH.matcher(hash).matches())
+            throw new IllegalArgumentException("Not an image hash: " + hash);
+        return root.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+    }
+
+    // Deletes the image together with its scaled copies
+    public void delete(String hash) {
+        Path original = path(hash);
+        try {
+            Files.deleteIfExists(original);
+            if (!Files.isDirectory(original.getParent()))
+                return;
+            try (DirectoryStream<Path> derivatives = Files.newDirectoryStream(original.getParent(), hash + "-*")) {
+                for (Path derivative : derivatives)
+                    Files.deleteIfExists(derivative);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not delete image " + hash, e);
+        }
+    }
+
+    static String sha256(byte[] data) {
+        return HexFormat.of().formatHex(sha256Digest().digest(data));
+    }
+
+    // Content type from the leading bytes of the file; null for anything that is not one of the accepted images
+    static String detectContentType(byte[] head, int length) {
+        if (startsWith(head, length, 0, 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'))
+            return "image/png";
+        if (startsWith(head, length, 0, 0xff, 0xd8, 0xff))
+            return "image/jpeg";
+        if (startsWith(head, length, 0, 'G', 'I', 'F', '8', '7', 'a') || startsWith(head, length, 0, 'G', 'I', 'F', '8', '9', 'a'))
+            return "image/gif";
+        if (startsWith(head, length, 0, 'R', 'I', 'F', 'F') && startsWith(head, length, 8, 'W', 'E', 'B', 'P'))
+            return "image/webp";
+        return null;
+    }
+
+    private static boolean startsWith(byte[] head, int length, int offset, int... magic) {
+        if (length < offset + magic.length)
+            return false;
+        for (int i = 0; i < magic.length; i++) {
+            if ((head[offset + i] & 0xff) != magic[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static MessageDigest sha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    // Uploads interrupted by a crash; anything that recent may still be written by another instance on the same disk
+    private void removeAbandonedUploads() throws IOException {
+        FileTime cutoff = FileTime.from(Instant.now().minus(Duration.ofHours(1)));
+        try (DirectoryStream<Path> uploads = Files.newDirectoryStream(staging, "upload*.tmp")) {
+            for (Path upload : uploads) {
+                if (Files.getLastModifiedTime(upload).compareTo(cutoff) < 0)
+                    deleteQuietly(upload);
+            }
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // Removed with the other abandoned uploads on the next start
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.sinenomine.plottracker.service;
+
+import com.sinenomine.plottracker.repo.JwtSigningKeyRepo;
+import com.sinenomine.plottracker.repo.JwtSigningKeyRepo.SigningKeyRow;
+import io.jsonwebtoken.security.Keys;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.crypto.SecretKey;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The JWT signing keys from jwt_signing_key, shared by every backend node so that any of them accepts the tokens of
+ * the others and restarts keep everyone logged in. Tokens carry the id of their key in the kid header. The newest key
+ * signs; older keys keep verifying until the tokens they signed have run out.
+ * <p>
+ * Each node reloads the ring every {@link #REFRESH_INTERVAL_MS} ms, and right away when a token names a key it does
+ * not know yet. Whichever node finds the signing key older than plottracker.jwt.key-rotation replaces it.
+ */
+@Component
+public class JwtKeyRing {
+    static final long REFRESH_INTERVAL_MS = 60_000;
+    // Unknown kids trigger a reload at most this often, so forged headers cannot hammer the database
+    private static final long MIN_RELOAD_INTERVAL_MS = 1_000;
+
+    private final Logger log = LoggerFactory.getLogger(JwtKeyRing.class);
+
+    private final JwtSigningKeyRepo jwtSigningKeyRepo;
+    private final TransactionTemplate transactionTemplate;
+    private final Duration rotation;
+    private final SecureRandom random = new SecureRandom();
+
+    public record SigningKey(String kid, SecretKey key) {
+    }
+
+    private record Ring(SigningKey signingKey, Map<String, SecretKey> keys) {
+    }
+
+    private volatile Ring ring;
+    private volatile long lastReload;
+
+    public JwtKeyRing(JwtSigningKeyRepo jwtSigningKeyRepo, TransactionTemplate transactionTemplate,
+                      @Value("${plottracker.jwt.key-rotation}") Duration rotation) {
+        this.jwtSigningKeyRepo = jwtSigningKeyRepo;
+        this.transactionTemplate = transactionTemplate;
+        this.rotation = rotation;
+        reload();
+    }
+
+    public SigningKey signingKey() {
+        return ring.signingKey();
+    }
+
+    // The key for a token's kid header, or null if there is no such key or it has expired
+    public SecretKey verificationKey(String kid) {
+        if (kid == null)
+            return null;
+        SecretKey key = ring.keys().get(kid);
+        if (key == null && System.currentTimeMillis() - lastReload >= MIN_RELOAD_INTERVAL_MS)
+            key = reloadFor(kid);
+        return key;
+    }
+
+    // Possibly a key another node has just rotated in. Checked again under the lock, so of a burst of requests with
+    // unknown kids only the first reloads and the others see its result.
+    private synchronized SecretKey reloadFor(String kid) {
+        SecretKey key = ring.keys().get(kid);
+        if (key == null && System.currentTimeMillis() - lastReload >= MIN_RELOAD_INTERVAL_MS) {
+            reload();
+            key = ring.keys().get(kid);
+        }
+        return key;
+    }
+
+    @Scheduled(fixedDelay = REFRESH_INTERVAL_MS, initialDelay = REFRESH_INTERVAL_MS)
+    public void refresh() {
+        rotateIfOlderThan(rotation);
+        reload();
+    }
+
+    // Replaces the signing key if it is older than maxAge; returns whether this node did so
+    public boolean rotateIfOlderThan(Duration maxAge) {
+        Boolean rotated = transactionTemplate.execute(status -> {
+            if (jwtSigningKeyRepo.lockNewestKeyAge() < maxAge.toSeconds())
+                return false;
+            byte[] secret = new byte[32];
+            random.nextBytes(secret);
+            // Other nodes may go on signing with the old key until their next refresh
+            Duration retireAfter = JWTService.TOKEN_TTL.plusMillis(2 * REFRESH_INTERVAL_MS);
+            jwtSigningKeyRepo.rotate(new SigningKeyRow(UUID.randomUUID().toString(), secret), retireAfter);
+            return true;
+        });
+        if (Boolean.TRUE.equals(rotated)) {
+            log.info("Rotated the JWT signing key");
+            reload();
+        }
+        return Boolean.TRUE.equals(rotated);
+    }
+
+    private synchronized void reload() {
+        List<SigningKeyRow> rows = jwtSigningKeyRepo.findUsable();
+        if (rows.isEmpty())
+            throw new IllegalStateException("No JWT signing key in jwt_signing_key");
+        Map<String, SecretKey> keys = new LinkedHashMap<>();
+        for (SigningKeyRow row : rows)
+            keys.put(row.kid(), Keys.hmacShaKeyFor(row.secret()));
+        String newest = rows.get(0).kid();
+        ring = new Ring(new SigningKey(newest, keys.get(newest)), Map.copyOf(keys));
+        lastReload = System.currentTimeMillis();
+    }
+}
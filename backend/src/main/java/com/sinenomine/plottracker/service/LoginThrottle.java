@@ -0,0 +1,71 @@
+package com.sinenomine.plottracker.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.sinenomine.plottracker.exception.TooManyRequestsException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts failed logins per username and per client address. Once either reaches its limit, further logins for it are
+ * refused with a 429 before any password is hashed, until the window that started with the first failure has passed.
+ * A successful login clears the count of the username.
+ */
+@Component
+public class LoginThrottle {
+    private static final long MAX_TRACKED = 100_000;
+
+    private final int maxFailuresPerUsername;
+    private final int maxFailuresPerAddress;
+    private final Duration window;
+    private final Cache<String, AtomicInteger> usernameFailures;
+    private final Cache<String, AtomicInteger> addressFailures;
+    private final Counter throttledLogins;
+
+    public LoginThrottle(@Value("${plottracker.auth.max-failures-per-username}") int maxFailuresPerUsername,
+                         @Value("${plottracker.auth.max-failures-per-address}") int maxFailuresPerAddress,
+                         @Value("${plottracker.auth.failure-window}") Duration window,
+                         MeterRegistry meterRegistry) {
+        this.maxFailuresPerUsername = maxFailuresPerUsername;
+        this.maxFailuresPerAddress = maxFailuresPerAddress;
+        this.window = window;
+        this.usernameFailures = Caffeine.newBuilder().expireAfterWrite(window).maximumSize(MAX_TRACKED).build();
+        this.addressFailures = Caffeine.newBuilder().expireAfterWrite(window).maximumSize(MAX_TRACKED).build();
+        this.throttledLogins = Counter.builder("plottracker.auth.login.throttled")
+                .description("Logins refused because of earlier failed attempts for the username or address")
+                .register(meterRegistry);
+    }
+
+    public void check(String username, String address) {
+        if (failures(usernameFailures, key(username)) >= maxFailuresPerUsername
+                || failures(addressFailures, address) >= maxFailuresPerAddress) {
+            throttledLogins.increment();
+            throw new TooManyRequestsException("Too many failed logins, please try again later", window);
+        }
+    }
+
+    public void recordFailure(String username, String address) {
+        usernameFailures.get(key(username), k -> new AtomicInteger()).incrementAndGet();
+        addressFailures.get(address, k -> new AtomicInteger()).incrementAndGet();
+    }
+
+    public void recordSuccess(String username) {
+        usernameFailures.invalidate(key(username));
+    }
+
+    private static int failures(Cache<String, AtomicInteger> cache, String key) {
+        AtomicInteger failures = cache.getIfPresent(key);
+        return failures == null ? 0 : failures.get();
+    }
+
+    // Usernames compare case-insensitively in the database
+    private static String key(String username) {
+        return username == null ? "" : username.toLowerCase(Locale.ROOT);
+    }
+}
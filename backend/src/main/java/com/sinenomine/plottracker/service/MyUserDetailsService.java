@@ -1,19 +1,44 @@
 package com.sinenomine.plottracker.service;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.sinenomine.plottracker.model.UserPrincipal;
 import com.sinenomine.plottracker.model.Users;
 import com.sinenomine.plottracker.repo.UserRepo;
-import org.springframework.beans.factory.annotation.Autowired;
+import io.jsonwebtoken.Claims;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.authentication.CredentialsExpiredException;
+import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsPasswordService;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
+
 @Service
-public class MyUserDetailsService implements UserDetailsService {
+public class MyUserDetailsService implements UserDetailsService, UserDetailsPasswordService {
+
+    // Current token versions of recently seen users. Other instances do not hear of revocations and go on accepting
+    // revoked tokens until their entry expires, so this bounds that window like the key ring refresh does for keys
+    private static final Duration TOKEN_VERSION_TTL = Duration.ofSeconds(60);
+    private static final long MAX_USERS = 10_000;
+
+    private final UserRepo userRepo;
+    private final Cache<Long, Integer> tokenVersions;
 
-    @Autowired
-    private UserRepo userRepo;
+    public MyUserDetailsService(UserRepo userRepo, MeterRegistry meterRegistry) {
+        this.userRepo = userRepo;
+        Cache<Long, Integer> cache = Caffeine.newBuilder()
+                .expireAfterWrite(TOKEN_VERSION_TTL)
+                .maximumSize(MAX_USERS)
+                .recordStats()
+                .build();
+        this.tokenVersions = CaffeineCacheMetrics.monitor(meterRegistry, cache, "tokenversions");
+    }
 
     @Override
     public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
@@ -25,4 +50,33 @@ public class MyUserDetailsService implements UserDetailsService {
 
         return new UserPrincipal(user);
     }
-}
\ No newline at end of file
+
+    // Called by the authentication provider after a successful login with a hash of a lower cost than the calibrated
+    // one, see PasswordHasher; the tokens of the account stay valid
+    @Override
+    public UserDetails updatePassword(UserDetails userDetails, String newPassword) {
+        Users user = userRepo.findById(((UserPrincipal) userDetails).getUserId())
+                .orElseThrow(() -> new UsernameNotFoundException("user not found"));
+        user.setPassword(newPassword);
+        return new UserPrincipal(userRepo.save(user));
+    }
+
+    // For requests carrying a token: the principal comes from the verified claims, so the users table is only read
+    // when the token version of the user is not cached
+    public UserPrincipal loadUserByToken(Claims claims) throws AuthenticationException {
+        Long userId = claims.get(JWTService.USER_ID_CLAIM, Long.class);
+        Integer tokenVersion = claims.get(JWTService.TOKEN_VERSION_CLAIM, Integer.class);
+        if (userId == null || tokenVersion == null || claims.getSubject() == null)
+            throw new BadCredentialsException("Token without user claims");
+
+        Integer currentVersion = tokenVersions.get(userId, id -> userRepo.findTokenVersion(id).orElse(null));
+        if (!tokenVersion.equals(currentVersion))
+            throw new CredentialsExpiredException("Token has been revoked");
+        return new UserPrincipal(userId, claims.getSubject(), tokenVersion);
+    }
+
+    // Called when the account revokes its tokens, so this instance rejects them right away
+    public void evict(Long userId) {
+        tokenVersions.invalidate(userId);
+    }
+}
@@ -0,0 +1,161 @@
+package com.sinenomine.plottracker.service;
+
+import com.sinenomine.plottracker.exception.TooManyRequestsException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * The password encoder of the application. Each bcrypt hash costs around a hundred milliseconds of CPU, so hashing runs
+ * on a few dedicated threads with a short queue instead of on the request threads: a burst of logins waits its turn
+ * there, and whatever does not fit is turned away with a 429, rather than taking the CPU from the story pages.
+ * <p>
+ * The bcrypt cost is not fixed but calibrated at startup: the highest cost, at least plottracker.auth.min-hash-cost,
+ * whose hash still takes no longer than plottracker.auth.hash-target on this CPU. Stored hashes of a lower cost are
+ * replaced on the next successful login, see {@link MyUserDetailsService#updatePassword}. Hashes of a higher cost are
+ * kept: they come from a faster node, and rehashing them down would only have that node raise them again.
+ */
+@Component
+public class PasswordHasher implements PasswordEncoder {
+    private static final int MAX_COST = 16;
+    private static final String CALIBRATION_PASSWORD = "calibration";
+
+    private final Logger log = LoggerFactory.getLogger(PasswordHasher.class);
+
+    private final int cost;
+    private final PasswordEncoder bcrypt;
+    private final ThreadPoolExecutor executor;
+    private final Timer hashTimer;
+    private final Counter rejectedHashes;
+
+    public PasswordHasher(@Value("${plottracker.auth.hash-threads}") int threads,
+                          @Value("${plottracker.auth.hash-queue}") int queueCapacity,
+                          @Value("${plottracker.auth.hash-target}") Duration target,
+                          @Value("${plottracker.auth.min-hash-cost}") int minCost,
+                          MeterRegistry meterRegistry) {
+        Calibration calibration = calibrate(target, minCost);
+        this.cost = calibration.cost();
+        this.bcrypt = new BCryptPasswordEncoder(cost);
+        log.info("Calibrated bcrypt cost {}: about {} ms per hash for a target of {} ms", cost,
+                calibration.hashTime().toMillis(), target.toMillis());
+        Gauge.builder("plottracker.auth.hash.cost", () -> cost)
+                .description("bcrypt cost chosen by the startup calibration")
+                .register(meterRegistry);
+        TimeGauge.builder("plottracker.auth.hash.calibrated", calibration.hashTime(), TimeUnit.NANOSECONDS,
+                        Duration::toNanos)
+                .description("Time per hash at the calibrated cost, as measured at startup")
+                .register(meterRegistry);
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "password-hasher-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.hashTimer = Timer.builder("plottracker.auth.hash")
+                .description("Time spent computing a password hash, without the wait in the queue")
+                .register(meterRegistry);
+        this.rejectedHashes = Counter.builder("plottracker.auth.hash.rejected")
+                .description("Logins, registrations and password checks turned away because the hash queue was full")
+                .register(meterRegistry);
+        Gauge.builder("plottracker.auth.hash.queue", executor, pool -> pool.getQueue().size())
+                .description("Password hashes waiting for a hashing thread")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public String encode(CharSequence rawPassword) {
+        return hash(() -> bcrypt.encode(rawPassword));
+    }
+
+    @Override
+    public boolean matches(CharSequence rawPassword, String encodedPassword) {
+        return hash(() -> bcrypt.matches(rawPassword, encodedPassword));
+    }
+
+    // Hashes of a lower cost than the calibrated one; left alone while logins are queueing, so that the extra hash of a
+    // rehash does not push other logins out
+    @Override
+    public boolean upgradeEncoding(String encodedPassword) {
+        return costOf(encodedPassword) < cost && executor.getQueue().isEmpty();
+    }
+
+    public int getCost() {
+        return cost;
+    }
+
+    private record Calibration(int cost, Duration hashTime) {
+    }
+
+    // Times the minimum cost and doubles from there, as every step of the cost doubles the work
+    private static Calibration calibrate(Duration target, int minCost) {
+        BCryptPasswordEncoder probe = new BCryptPasswordEncoder(minCost);
+        String hash = probe.encode(CALIBRATION_PASSWORD);
+        long fastest = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            probe.matches(CALIBRATION_PASSWORD, hash);
+            fastest = Math.min(fastest, System.nanoTime() - start);
+        }
+        int cost = minCost;
+        long hashNanos = fastest;
+        while (cost < MAX_COST && hashNanos * 2 <= target.toNanos()) {
+            cost++;
+            hashNanos *= 2;
+        }
+        return new Calibration(cost, Duration.ofNanos(hashNanos));
+    }
+
+    // The cost of a hash like $2a$12$..., or -1 for anything else
+    static int costOf(String encodedPassword) {
+        if (encodedPassword == null || encodedPassword.length() < 7 || encodedPassword.charAt(6) != '$')
+            return -1;
+        try {
+            return Integer.parseInt(encodedPassword.substring(4, 6));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private <T> T hash(Supplier<T> work) {
+        Future<T> result;
+        try {
+            result = executor.submit(() -> hashTimer.record(work));
+        } catch (RejectedExecutionException e) {
+            rejectedHashes.increment();
+            throw new TooManyRequestsException("Too many logins in progress, please try again");
+        }
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while hashing a password", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause)
+                throw cause;
+            throw new IllegalStateException("Could not hash password", e.getCause());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
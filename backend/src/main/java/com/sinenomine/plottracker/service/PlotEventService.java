@@ -6,15 +6,17 @@ import com.sinenomine.plottracker.dto.TagResponseDto;
 import com.sinenomine.plottracker.exception.ResourceNotFoundException;
 import com.sinenomine.plottracker.exception.UnauthorizedException;
 import com.sinenomine.plottracker.model.PlotEvent;
-import com.sinenomine.plottracker.model.Story;
 import com.sinenomine.plottracker.model.Tag;
 import com.sinenomine.plottracker.enums.EventType;
 import com.sinenomine.plottracker.repo.PlotEventRepo;
+import com.sinenomine.plottracker.repo.StoryAccess;
+import com.sinenomine.plottracker.repo.StoryRepo;
 import com.sinenomine.plottracker.repo.TagRepo;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.util.HashSet;
 import java.util.List;
-import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -22,135 +24,133 @@ import java.util.stream.Collectors;
 public class PlotEventService {
 
     private final PlotEventRepo plotEventRepo;
+    private final StoryRepo storyRepo;
     private final TagRepo tagRepo;
+    private final DemoTemplateCache demoTemplateCache;
+    private final AccessGuard accessGuard;
 
-    public PlotEventService(PlotEventRepo plotEventRepo, TagRepo tagRepo) {
+    public PlotEventService(PlotEventRepo plotEventRepo, StoryRepo storyRepo, TagRepo tagRepo, DemoTemplateCache demoTemplateCache, AccessGuard accessGuard) {
         this.plotEventRepo = plotEventRepo;
+        this.storyRepo = storyRepo;
         this.tagRepo = tagRepo;
+        this.demoTemplateCache = demoTemplateCache;
+        this.accessGuard = accessGuard;
     }
 
-    public PlotEvent getPlotEventById(String username, Long eventId) {
-        PlotEvent event = plotEventRepo.findById(eventId)
-                .orElseThrow(() -> new ResourceNotFoundException("Plot event not found"));
-        if (!event.getStory().getUser().getUsername().equals(username)) {
-            throw new UnauthorizedException("Unauthorized access to plot event");
-        }
-        return event;
+    // Gap left between neighbouring ranks so that most inserts and moves only write the moved event
+    static final long POSITION_GAP = 1L << 16;
+
+    // Ownership comes from the access check, so only the event and its tags are loaded; its story stays a proxy
+    public PlotEvent getPlotEventById(Long userId, Long eventId) {
+        accessGuard.checkPlotEvent(eventId, userId);
+        return findPlotEvent(eventId);
     }
 
-    public PlotEvent updatePlotEvent(Long eventId, PlotEventRequestDto dto, String username) {
-        PlotEvent savedPlotEvent = new PlotEvent();
-        PlotEvent prevEvent = new PlotEvent();
-        PlotEvent nextEvent = new PlotEvent();
+    private PlotEvent findPlotEvent(Long eventId) {
+        return plotEventRepo.findWithTagsByEventId(eventId)
+                .orElseThrow(() -> new ResourceNotFoundException("Plot event not found"));
+    }
 
-        PlotEvent plotEvent = getPlotEventById(username, eventId);
+    @Transactional
+    public PlotEvent updatePlotEvent(Long eventId, PlotEventRequestDto dto, Long userId) {
+        StoryAccess access = accessGuard.checkPlotEvent(eventId, userId);
+        PlotEvent plotEvent = findPlotEvent(eventId);
+        Long storyId = access.storyId();
+        demoTemplateCache.evict(storyId);
+        storyRepo.incrementVersion(storyId);
         plotEvent.setEventType(EventType.valueOf(dto.getEventType()));
         plotEvent.setTitle(dto.getTitle());
         plotEvent.setDate(dto.getDate());
+        plotEvent.setDateKey(DateKeyParser.toSortKey(dto.getDate(), access.dateFormat()));
         plotEvent.setDescription(dto.getDescription());
         plotEvent.setContent(dto.getContent());
         plotEvent.setInPlot(dto.getInPlot());
 
-        if (plotEvent.getMemoryRef() != null) {
-            PlotEvent memoryRef = plotEventRepo.findById(plotEvent.getMemoryRef().getEventId())
-                    .orElseThrow(() -> new ResourceNotFoundException("Memory reference plot event not found"));
-            plotEvent.setMemoryRef(memoryRef);
+        if (Boolean.TRUE.equals(plotEvent.getInPlot())) {
+            plotEvent.setPosition(positionAfter(storyId, dto.getPrevEventId(), eventId));
+        } else {
+            plotEvent.setPosition(null);
         }
 
-        //delete links
-        prevEvent = plotEvent.getPrevEvent();
-        nextEvent = plotEvent.getNextEvent();
-
-        plotEvent.setPrevEvent(null);
-        plotEvent.setNextEvent(null);
-        plotEventRepo.save(plotEvent);
-        if (prevEvent != null && nextEvent != null) {
-            prevEvent.setNextEvent(nextEvent);
-            nextEvent.setPrevEvent(prevEvent);
-            plotEventRepo.save(prevEvent);
-            plotEventRepo.save(nextEvent);
-        } else if (prevEvent != null) {
-            prevEvent.setNextEvent(null);
-            plotEventRepo.save(prevEvent);
-        } else if (nextEvent != null) {
-            nextEvent.setPrevEvent(null);
-            plotEventRepo.save(nextEvent);
-        }
+        plotEvent.getTags().clear();
+        plotEvent.getTags().addAll(findTagsOfStory(dto.getTags(), storyId));
+        return plotEventRepo.save(plotEvent);
+    }
 
-        prevEvent = new PlotEvent();
-        nextEvent = new PlotEvent();
-
-        //set links
-        Set<PlotEvent> eventSet = plotEventRepo.findByStory(plotEvent.getStory().getStoryId());
-        List<PlotEvent> events = new java.util.ArrayList<>(eventSet);
-        Optional<PlotEvent> firstEvent = events.stream()
-                .filter(e -> (e.getPrevEvent() == null && e.getInPlot() && (e.getEventId() != plotEvent.getEventId())))
-                .findFirst();
-        if (plotEvent.getInPlot()) {
-            if (dto.getPrevEventId() == null && firstEvent.isEmpty()) {
-                savedPlotEvent = plotEventRepo.save(plotEvent);
-            } else if (dto.getPrevEventId() == null) {
-                plotEvent.setNextEvent(firstEvent.get());
-                savedPlotEvent = plotEventRepo.save(plotEvent);
-                firstEvent.get().setPrevEvent(savedPlotEvent);
-                plotEventRepo.save(firstEvent.get());
-            } else {
-                prevEvent = plotEventRepo.findById(dto.getPrevEventId())
-                        .orElseThrow(() -> new ResourceNotFoundException("Next event not found"));
-                plotEvent.setPrevEvent(prevEvent);
-
-                if (prevEvent.getNextEvent() == null) {
-                    savedPlotEvent = plotEventRepo.save(plotEvent);
-                    prevEvent.setNextEvent(savedPlotEvent);
-                    plotEventRepo.save(prevEvent);
-                } else {
-                    nextEvent = prevEvent.getNextEvent();
-                    nextEvent.setPrevEvent(null);
-                    PlotEvent updatedNextEvent = plotEventRepo.save(nextEvent);
-
-                    savedPlotEvent = plotEventRepo.save(plotEvent);
-                    prevEvent.setNextEvent(savedPlotEvent);
-                    plotEventRepo.save(prevEvent);
-
-                    updatedNextEvent.setPrevEvent(savedPlotEvent);
-                    updatedNextEvent = plotEventRepo.save(updatedNextEvent);
-
-                    plotEvent.setNextEvent(updatedNextEvent);
-                    savedPlotEvent = plotEventRepo.save(plotEvent);
-                }
-            }
+    // Position for an event placed right after prevEventId, or at the start of the story order when it is null
+    Long positionAfter(Long storyId, Long prevEventId, Long eventId) {
+        Long lower = null;
+        if (prevEventId != null) {
+            lower = plotEventRepo.findPosition(storyId, prevEventId);
+            if (lower == null)
+                throw new ResourceNotFoundException("Previous event not found");
         }
+        Long upper = lower == null
+                ? plotEventRepo.findFirstPosition(storyId, eventId)
+                : plotEventRepo.findNextPosition(storyId, lower, eventId);
+
+        if (lower == null && upper == null)
+            return POSITION_GAP;
+        if (lower == null)
+            return upper - POSITION_GAP;
+        if (upper == null)
+            return lower + POSITION_GAP;
+        if (upper - lower > 1)
+            return lower + (upper - lower) / 2;
+
+        // No room left between the neighbours: spread the whole story out again and retry
+        plotEventRepo.renumberPositions(storyId, POSITION_GAP);
+        return positionAfter(storyId, prevEventId, eventId);
+    }
 
-        plotEventRepo.deletePlotEventTagByEventId(plotEvent.getEventId());
-        for (Long tagId : dto.getTags()) {
-            addTagToPlotEvent(savedPlotEvent.getEventId(), tagId, username);
+    Set<Tag> findTagsOfStory(Set<Long> tagIds, Long storyId) {
+        if (tagIds == null || tagIds.isEmpty())
+            return new HashSet<>();
+        List<Tag> tags = tagRepo.findAllById(tagIds);
+        if (tags.size() != tagIds.size())
+            throw new ResourceNotFoundException("Tag not found");
+        for (Tag tag : tags) {
+            if (!tag.getStory().getStoryId().equals(storyId)) {
+                throw new UnauthorizedException("Unauthorized access to tag");
+            }
         }
-        return getPlotEventById(username, savedPlotEvent.getEventId());
+        return new HashSet<>(tags);
     }
 
-    public void deletePlotEvent(Long eventId, String username) {
-        PlotEvent event = getPlotEventById(username, eventId);
+    @Transactional
+    public void deletePlotEvent(Long eventId, Long userId) {
+        PlotEvent event = getPlotEventById(userId, eventId);
+        demoTemplateCache.evict(event.getStory().getStoryId());
+        storyRepo.incrementVersion(event.getStory().getStoryId());
         plotEventRepo.delete(event);
+        // The delete cascades to the memory reference and the tags of the event
+        accessGuard.evictEntitiesOf(event.getStory().getStoryId());
     }
 
-    public PlotEvent addTagToPlotEvent(Long eventId, Long tagId, String username) {
-        PlotEvent event = getPlotEventById(username, eventId);
+    @Transactional
+    public PlotEvent addTagToPlotEvent(Long eventId, Long tagId, Long userId) {
+        PlotEvent event = getPlotEventById(userId, eventId);
         Tag tag = tagRepo.findById(tagId)
                 .orElseThrow(() -> new ResourceNotFoundException("Tag not found"));
         if (!tag.getStory().getStoryId().equals(event.getStory().getStoryId())) {
             throw new UnauthorizedException("Unauthorized access to tag");
         }
+        demoTemplateCache.evict(event.getStory().getStoryId());
+        storyRepo.incrementVersion(event.getStory().getStoryId());
         event.getTags().add(tag);
         return plotEventRepo.save(event);
     }
 
-    public PlotEvent removeTagFromPlotEvent(Long eventId, Long tagId, String username) {
-        PlotEvent event = getPlotEventById(username, eventId);
+    @Transactional
+    public PlotEvent removeTagFromPlotEvent(Long eventId, Long tagId, Long userId) {
+        PlotEvent event = getPlotEventById(userId, eventId);
         Tag tag = tagRepo.findById(tagId)
                 .orElseThrow(() -> new ResourceNotFoundException("Tag not found"));
         if (!tag.getStory().getStoryId().equals(event.getStory().getStoryId())) {
             throw new UnauthorizedException("Unauthorized access to tag");
         }
+        demoTemplateCache.evict(event.getStory().getStoryId());
+        storyRepo.incrementVersion(event.getStory().getStoryId());
         event.getTags().remove(tag);
         return plotEventRepo.save(event);
     }
@@ -173,7 +173,8 @@ public class PlotEventService {
                 event.getContent(),
                 event.getInPlot(),
                 event.getMemoryRef() == null ? null : event.getMemoryRef().getEventId(),
-                event.getPrevEvent() == null ? null : event.getPrevEvent().getEventId(),
+                event.getPosition() == null ? null
+                        : plotEventRepo.findPrevEventId(event.getStory().getStoryId(), event.getPosition()),
                 tagDtos);
     }
 }
@@ -0,0 +1,127 @@
+package com.sinenomine.plottracker.service;
+
+import com.sinenomine.plottracker.repo.ProvisioningTaskRepo;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gives new accounts their copy of the demo story in the background, so registration only writes the user. The
+ * registration transaction adds a provisioning_task row; a worker thread picks it up once that has committed, and
+ * every few seconds anyway, so tasks of a crashed node or a failed attempt are taken up again by any node. Each task
+ * is copied in the same transaction that locks and completes it, so a copy is either there with its task done or
+ * not at all.
+ */
+@Service
+public class ProvisioningService {
+    static final int MAX_ATTEMPTS = 8;
+    private static final Duration FIRST_RETRY = Duration.ofSeconds(10);
+    private static final Duration MAX_RETRY = Duration.ofHours(1);
+
+    private final Logger log = LoggerFactory.getLogger(ProvisioningService.class);
+
+    private final ProvisioningTaskRepo provisioningTaskRepo;
+    private final StoryService storyService;
+    private final TransactionTemplate transactionTemplate;
+    // One worker; wake-ups while it is busy collapse into a single further run
+    private final ThreadPoolExecutor worker;
+    private final Timer provisioningTimer;
+    private final Counter failedAttempts;
+
+    public ProvisioningService(ProvisioningTaskRepo provisioningTaskRepo, StoryService storyService,
+                               TransactionTemplate transactionTemplate, MeterRegistry meterRegistry) {
+        this.provisioningTaskRepo = provisioningTaskRepo;
+        this.storyService = storyService;
+        this.transactionTemplate = transactionTemplate;
+        this.worker = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "provisioning");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.DiscardPolicy());
+        this.provisioningTimer = Timer.builder("plottracker.provisioning")
+                .description("Time to copy the demo story for a new account in the background")
+                .register(meterRegistry);
+        this.failedAttempts = Counter.builder("plottracker.provisioning.failures")
+                .description("Attempts to provision a new account that failed and will be retried or given up")
+                .register(meterRegistry);
+    }
+
+    // Queues the demo story for a user created in the current transaction
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void schedule(Long userId) {
+        provisioningTaskRepo.insert(userId);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                wake();
+            }
+        });
+    }
+
+    // Accounts from before the outbox have no task and were provisioned during registration
+    public String getStatus(Long userId) {
+        return provisioningTaskRepo.findStatus(userId).orElse(ProvisioningTaskRepo.DONE);
+    }
+
+    @Scheduled(fixedDelay = 5_000, initialDelay = 5_000)
+    public void wake() {
+        worker.execute(this::provisionDue);
+    }
+
+    private void provisionDue() {
+        try {
+            while (provisionNext()) {
+                // Keep going while tasks are due
+            }
+        } catch (RuntimeException e) {
+            log.error("Could not look for provisioning tasks", e);
+        }
+    }
+
+    // Works off one due task; returns false when there was none
+    private boolean provisionNext() {
+        Long[] claimed = new Long[1];
+        try {
+            return Boolean.TRUE.equals(transactionTemplate.execute(status -> {
+                Optional<Long> userId = provisioningTaskRepo.claimDue();
+                if (userId.isEmpty())
+                    return false;
+                claimed[0] = userId.get();
+                provisioningTimer.record(() -> storyService.cloneDemoStoryForUser(userId.get()));
+                provisioningTaskRepo.markDone(userId.get());
+                return true;
+            }));
+        } catch (RuntimeException e) {
+            if (claimed[0] == null)
+                throw e;
+            log.warn("Could not provision user {}", claimed[0], e);
+            failedAttempts.increment();
+            transactionTemplate.executeWithoutResult(status -> provisioningTaskRepo.markFailed(
+                    claimed[0], e.toString(), FIRST_RETRY, MAX_RETRY, MAX_ATTEMPTS));
+            return true;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        worker.shutdownNow();
+    }
+}
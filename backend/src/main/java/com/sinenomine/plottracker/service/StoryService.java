@@ -1,10 +1,14 @@
 package com.sinenomine.plottracker.service;
 
+import com.sinenomine.plottracker.dto.PlotEventResponseDto;
+import com.sinenomine.plottracker.dto.PlotEventTagDto;
 import com.sinenomine.plottracker.dto.StoryRequestDto;
 import com.sinenomine.plottracker.dto.StoryResponseDto;
+import com.sinenomine.plottracker.dto.TagResponseDto;
 import com.sinenomine.plottracker.exception.DocumentGenerationException;
+import com.sinenomine.plottracker.exception.InvalidDateException;
 import com.sinenomine.plottracker.exception.ResourceNotFoundException;
-import com.sinenomine.plottracker.exception.UnauthorizedException;
+import com.sinenomine.plottracker.exception.TooManyRequestsException;
 import com.sinenomine.plottracker.model.*;
 import com.sinenomine.plottracker.model.Character;
 import com.sinenomine.plottracker.repo.*;
@@ -13,63 +17,85 @@ import org.apache.poi.xwpf.usermodel.XWPFParagraph;
 import org.apache.poi.xwpf.usermodel.XWPFRun;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
+import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
 
 @Service
 public class StoryService {
-    private static final Long DEMO_TEMPLATE_ID = 1L;
-
     private final Logger log = LoggerFactory.getLogger(StoryService.class);
     private final StoryRepo storyRepo;
     private final UserRepo userRepo;
     private final PlotEventRepo plotEventRepo;
     private final TagRepo tagRepo;
     private final CharacterRepo characterRepo;
+    private final CharacterImageService characterImageService;
     private final TagTypeRepo tagTypeRepo;
+    private final StoryCloneRepo storyCloneRepo;
+    private final DemoTemplateCache demoTemplateCache;
     private final PlotEventService plotEventService;
+    private final AccessGuard accessGuard;
+    private final Semaphore exportPermits;
 
-    public StoryService(StoryRepo storyRepo, UserRepo userRepo, PlotEventRepo plotEventRepo, TagRepo tagRepo, CharacterRepo characterRepo, TagTypeRepo tagTypeRepo, PlotEventService plotEventService) {
+    public StoryService(StoryRepo storyRepo, UserRepo userRepo, PlotEventRepo plotEventRepo, TagRepo tagRepo, CharacterRepo characterRepo, CharacterImageService characterImageService, TagTypeRepo tagTypeRepo, StoryCloneRepo storyCloneRepo, DemoTemplateCache demoTemplateCache, PlotEventService plotEventService, AccessGuard accessGuard,
+                        @Value("${plottracker.exports.max-concurrent}") int maxConcurrentExports) {
         this.storyRepo = storyRepo;
         this.userRepo = userRepo;
         this.plotEventRepo = plotEventRepo;
         this.tagRepo = tagRepo;
         this.characterRepo = characterRepo;
+        this.characterImageService = characterImageService;
         this.tagTypeRepo = tagTypeRepo;
+        this.storyCloneRepo = storyCloneRepo;
+        this.demoTemplateCache = demoTemplateCache;
         this.plotEventService = plotEventService;
+        this.accessGuard = accessGuard;
+        this.exportPermits = new Semaphore(maxConcurrentExports);
     }
 
     // Get all stories for a user
-    public List<StoryResponseDto> findByUser(String username) {
-        return storyRepo.findByUserResponses(username);
+    public List<StoryResponseDto> findByUser(Long userId) {
+        return storyRepo.findByUserResponses(userId);
     }
 
     // Create a new story for the current user
-    public Story createStory(String username, StoryRequestDto storyRequestDto) {
-        Users user = userRepo.findByUsername(username);
-        if (user == null) {
-            throw new ResourceNotFoundException("User not found");
-        }
+    public Story createStory(Long userId, StoryRequestDto storyRequestDto) {
         Story story = new Story();
         story.setTitle(storyRequestDto.getTitle());
         story.setDescription(storyRequestDto.getDescription());
         story.setDateFormat(storyRequestDto.getDateFormat());
-        story.setUser(user);
+        story.setUser(userRepo.getReferenceById(userId));
         return storyRepo.save(story);
     }
 
     // Get details for a specific story (only if it belongs to the user)
-    public Story getStoryDetails(String username, Long storyId) {
-        return getStoryByIdAndUser(storyId, username);
+    public Story getStoryDetails(Long userId, Long storyId) {
+        return getStoryByIdAndUser(storyId, userId);
+    }
+
+    // Version of the story and everything in it, for the ETags of its GET endpoints. Read before the content it
+    // tags, so the content is never older than the version it is sent with.
+    public long getStoryVersion(Long userId, Long storyId) {
+        accessGuard.checkStory(storyId, userId);
+        return storyRepo.findVersion(storyId)
+                .orElseThrow(() -> new ResourceNotFoundException("Story not found"));
     }
 
     // Update an existing story
-    public Story updateStory(String username, Long storyId, StoryRequestDto storyRequestDto) {
-        Story existingStory = getStoryByIdAndUser(storyId, username);
+    @Transactional
+    public Story updateStory(Long userId, Long storyId, StoryRequestDto storyRequestDto) {
+        Story existingStory = getStoryByIdAndUser(storyId, userId);
+        demoTemplateCache.evict(storyId);
+        storyRepo.incrementVersion(storyId);
         existingStory.setTitle(storyRequestDto.getTitle());
         existingStory.setDescription(storyRequestDto.getDescription());
         return storyRepo.save(existingStory);
@@ -77,121 +103,173 @@ public class StoryService {
 
     // Delete a story
     @Transactional
-    public void deleteStory(String username, Long storyId) {
-        Story story = getStoryByIdAndUser(storyId, username);
+    public void deleteStory(Long userId, Long storyId) {
+        accessGuard.checkStory(storyId, userId);
+        demoTemplateCache.evict(storyId);
+        characterImageService.releaseStoryReferences(storyId);
         plotEventRepo.deletePlotEventTagByStoryId(storyId);
         characterRepo.deleteByStoryId(storyId);
         tagRepo.deleteByStory_StoryId(storyId);
         tagTypeRepo.deleteByStory_StoryId(storyId);
         plotEventRepo.deleteByStory_StoryId(storyId);
-        storyRepo.delete(story);
+        storyRepo.deleteByStoryId(storyId);
+        accessGuard.evictStory(storyId);
     }
 
     // Get all plot events for a given story
-    public Set<PlotEvent> getPlotEvents(String username, Long storyId) {
-        Story story = storyRepo.findById(storyId)
-                .orElseThrow(() -> new ResourceNotFoundException("Story not found"));
-        if (!story.getUser().getUsername().equals(username)) {
-            throw new UnauthorizedException("Unauthorized access to story");
-        }
+    public Set<PlotEvent> getPlotEvents(Long userId, Long storyId) {
+        accessGuard.checkStory(storyId, userId);
         return plotEventRepo.findByStory(storyId);
     }
 
-    // Add a new plot event to a given story; if provided, resolve memoryRef and nextEvent
-    public PlotEvent addPlotEventToStory(String username, Long storyId, PlotEvent plotEvent, Long memoryRefId, Long prevEventId, Set<Long> tags) {
-        PlotEvent savedPlotEvent = new PlotEvent();
-        PlotEvent prevEvent = new PlotEvent();
-        PlotEvent nextEvent = new PlotEvent();
+    // Get all plot events for a given story as response rows, without loading managed entities
+    public List<PlotEventResponseDto> getPlotEventResponses(Long userId, Long storyId) {
+        accessGuard.checkStory(storyId, userId);
+        List<PlotEventResponseDto> events = plotEventRepo.findResponsesByStory(storyId);
+        attachPrevEventIds(storyId, events);
+        attachTags(storyId, events);
+        return events;
+    }
 
-        Story story = getStoryByIdAndUser(storyId, username);
-        plotEvent.setStory(story);
-        if (memoryRefId != null) {
-            PlotEvent memoryRef = plotEventRepo.findById(memoryRefId)
-                    .orElseThrow(() -> new ResourceNotFoundException("Memory reference plot event not found"));
-            plotEvent.setMemoryRef(memoryRef);
+    // Get plot events ordered by date, optionally restricted to [from, to] (in the story's dateFormat) and limited
+    public List<PlotEventResponseDto> getPlotEventResponsesInDateOrder(Long userId, Long storyId, String from, String to, Integer limit) {
+        StoryAccess story = accessGuard.checkStory(storyId, userId);
+        Long fromKey = parseDateParam(from, story.dateFormat());
+        Long toKey = parseDateParam(to, story.dateFormat());
+        Limit rowLimit = limit == null || limit < 1 ? Limit.unlimited() : Limit.of(limit);
+        List<PlotEventResponseDto> events = plotEventRepo.findResponsesByStoryInDateOrder(storyId, fromKey, toKey, rowLimit);
+        // A bounded page only reads what it returns, rather than the order and the tags of the whole story
+        if (fromKey == null && toKey == null && rowLimit.isUnlimited()) {
+            attachPrevEventIds(storyId, events);
+            attachTags(storyId, events);
+        } else {
+            attachPrevEventIdsOfEvents(storyId, events);
+            attachTagsOfEvents(events);
         }
+        return events;
+    }
 
-        Set<PlotEvent> eventSet = getPlotEvents(username, storyId);
-        List<PlotEvent> events = new java.util.ArrayList<>(eventSet);
-        Optional<PlotEvent> firstEvent = events.stream()
-                .filter(e -> (e.getPrevEvent() == null && e.getInPlot()))
-                .findFirst();
-
-        if (plotEvent.getInPlot()) {
-            if (prevEventId == null && firstEvent.isEmpty()) {
-                savedPlotEvent = plotEventRepo.save(plotEvent);
-            } else if (prevEventId == null) {
-                plotEvent.setNextEvent(firstEvent.get());
-                savedPlotEvent = plotEventRepo.save(plotEvent);
-                firstEvent.get().setPrevEvent(savedPlotEvent);
-                plotEventRepo.save(firstEvent.get());
-            } else {
-                prevEvent = plotEventRepo.findById(prevEventId)
-                        .orElseThrow(() -> new ResourceNotFoundException("Next event not found"));
-                plotEvent.setPrevEvent(prevEvent);
-
-                if (prevEvent.getNextEvent() == null) {
-                    savedPlotEvent = plotEventRepo.save(plotEvent);
-                    prevEvent.setNextEvent(savedPlotEvent);
-                    plotEventRepo.save(prevEvent);
-                } else {
-                    nextEvent = prevEvent.getNextEvent();
-                    nextEvent.setPrevEvent(null);
-                    PlotEvent updatedNextEvent = plotEventRepo.save(nextEvent);
-
-                    savedPlotEvent = plotEventRepo.save(plotEvent);
-                    prevEvent.setNextEvent(savedPlotEvent);
-                    plotEventRepo.save(prevEvent);
-
-                    updatedNextEvent.setPrevEvent(savedPlotEvent);
-                    updatedNextEvent = plotEventRepo.save(updatedNextEvent);
-
-                    plotEvent.setNextEvent(updatedNextEvent);
-                    savedPlotEvent = plotEventRepo.save(plotEvent);
-                }
-            }
+    private Long parseDateParam(String date, String dateFormat) {
+        if (date == null)
+            return null;
+        Long key = DateKeyParser.toSortKey(date, dateFormat);
+        if (key == null)
+            throw new InvalidDateException("Invalid date: " + date);
+        return key;
+    }
+
+    private void attachPrevEventIds(Long storyId, List<PlotEventResponseDto> events) {
+        Map<Long, Long> prevEventIds = new HashMap<>();
+        Long prevEventId = null;
+        for (Long eventId : plotEventRepo.findStoryOrder(storyId)) {
+            prevEventIds.put(eventId, prevEventId);
+            prevEventId = eventId;
+        }
+        for (PlotEventResponseDto event : events) {
+            event.setPrevEventId(prevEventIds.get(event.getEventId()));
         }
+    }
 
-        for (Long tagId : tags) {
-            plotEventService.addTagToPlotEvent(savedPlotEvent.getEventId(), tagId, username);
+    private void attachPrevEventIdsOfEvents(Long storyId, List<PlotEventResponseDto> events) {
+        if (events.isEmpty())
+            return;
+        List<Long> eventIds = events.stream().map(PlotEventResponseDto::getEventId).toList();
+        Map<Long, Long> prevEventIds = new HashMap<>();
+        for (PlotEventRepo.Predecessor predecessor : plotEventRepo.findPredecessors(storyId, eventIds))
+            prevEventIds.put(predecessor.getEventId(), predecessor.getPrevEventId());
+        for (PlotEventResponseDto event : events) {
+            event.setPrevEventId(prevEventIds.get(event.getEventId()));
         }
-        return plotEventService.getPlotEventById(username, savedPlotEvent.getEventId());
     }
 
-    // Helper method to ensure the story exists and belongs to the current user
-    Story getStoryByIdAndUser(Long storyId, String username) {
-        Story story = storyRepo.findById(storyId)
-                .orElseThrow(() -> new ResourceNotFoundException("Story not found"));
-        if (!story.getUser().getUsername().equals(username)) {
-            throw new UnauthorizedException("Unauthorized access to story");
+    // Get the in-plot events of a given story as response rows, in story order
+    public List<PlotEventResponseDto> getPlotEventResponsesInStoryOrder(Long userId, Long storyId) {
+        accessGuard.checkStory(storyId, userId);
+        List<PlotEventResponseDto> events = plotEventRepo.findResponsesByStoryInStoryOrder(storyId);
+        Long prevEventId = null;
+        for (PlotEventResponseDto event : events) {
+            event.setPrevEventId(prevEventId);
+            prevEventId = event.getEventId();
         }
-        return story;
+        attachTags(storyId, events);
+        return events;
     }
 
-    // Export plot events as a DOCX file for the specified story
-    public byte[] exportPlotEventsAsDocx(String username, Long storyId, String as) {
-        Story story = storyRepo.findById(storyId)
+    private void attachTags(Long storyId, List<PlotEventResponseDto> events) {
+        setTags(events, plotEventRepo.findTagResponsesByStory(storyId));
+    }
+
+    // Only the tags of the given rows, for partial lists of large stories
+    private void attachTagsOfEvents(List<PlotEventResponseDto> events) {
+        if (events.isEmpty())
+            return;
+        List<Long> eventIds = events.stream().map(PlotEventResponseDto::getEventId).toList();
+        setTags(events, plotEventRepo.findTagResponsesByEventIds(eventIds));
+    }
+
+    private void setTags(List<PlotEventResponseDto> events, List<PlotEventTagDto> eventTags) {
+        Map<Long, List<TagResponseDto>> tagsByEvent = eventTags.stream()
+                .collect(Collectors.groupingBy(PlotEventTagDto::getEventId,
+                        Collectors.mapping(PlotEventTagDto::toTagResponseDto, Collectors.toList())));
+        for (PlotEventResponseDto event : events) {
+            event.setTags(tagsByEvent.getOrDefault(event.getEventId(), new ArrayList<>()));
+        }
+    }
+
+    // Add a new plot event to a given story; if provided, resolve memoryRef and the event it follows
+    @Transactional
+    public PlotEvent addPlotEventToStory(Long userId, Long storyId, PlotEvent plotEvent, Long memoryRefId, Long prevEventId, Set<Long> tags) {
+        StoryAccess story = accessGuard.checkStory(storyId, userId);
+        demoTemplateCache.evict(storyId);
+        storyRepo.incrementVersion(storyId);
+        plotEvent.setStory(storyRepo.getReferenceById(storyId));
+        plotEvent.setDateKey(DateKeyParser.toSortKey(plotEvent.getDate(), story.dateFormat()));
+        if (memoryRefId != null) {
+            accessGuard.checkPlotEvent(memoryRefId, userId);
+            plotEvent.setMemoryRef(plotEventRepo.getReferenceById(memoryRefId));
+        }
+
+        if (Boolean.TRUE.equals(plotEvent.getInPlot())) {
+            plotEvent.setPosition(plotEventService.positionAfter(storyId, prevEventId, null));
+        }
+        plotEvent.getTags().addAll(plotEventService.findTagsOfStory(tags, storyId));
+        return plotEventRepo.save(plotEvent);
+    }
+
+    // Helper method to load a story that is returned or changed, ensuring it belongs to the current user
+    Story getStoryByIdAndUser(Long storyId, Long userId) {
+        accessGuard.checkStory(storyId, userId);
+        return storyRepo.findById(storyId)
                 .orElseThrow(() -> new ResourceNotFoundException("Story not found"));
-        if (!story.getUser().getUsername().equals(username)) {
-            throw new UnauthorizedException("Unauthorized access to story");
+    }
+
+    // Export plot events as a DOCX file for the specified story; built on the task executor, so the request thread is
+    // free in the meantime. On platform threads the executor's pool and queue bound the exports. On virtual threads
+    // every export gets a thread of its own, so the permits bound how many are built at once and the rest are turned
+    // away instead of waiting.
+    @Async
+    @Transactional(readOnly = true)
+    public CompletableFuture<byte[]> exportPlotEventsAsDocx(Long userId, Long storyId, String as) {
+        if (!exportPermits.tryAcquire())
+            throw new TooManyRequestsException("Too many exports in progress, please try again");
+        try {
+            return CompletableFuture.completedFuture(buildDocx(userId, storyId, as));
+        } finally {
+            exportPermits.release();
         }
+    }
+
+    private byte[] buildDocx(Long userId, Long storyId, String as) {
+        Story story = getStoryByIdAndUser(storyId, userId);
         List<Character> characters = new ArrayList<>();
 
         if (as.equals("script")) {
             characters = characterRepo.findByTag_Story_StoryId(storyId);
         }
 
-        Set<PlotEvent> eventSet = getPlotEvents(username, storyId);
-        List<PlotEvent> events = new ArrayList<>(eventSet);
-        PlotEvent firstEvent = events.stream()
-                .filter(e -> e.getPrevEvent() == null && e.getInPlot())
-                .findFirst()
-                .orElseThrow(() -> new ResourceNotFoundException("No starting event found"));
-        List<PlotEvent> orderedEvents = new java.util.ArrayList<>();
-        PlotEvent current = firstEvent;
-        while (current != null) {
-            orderedEvents.add(current);
-            current = current.getNextEvent();
+        List<PlotEvent> orderedEvents = plotEventRepo.findByStory_StoryIdAndPositionNotNullOrderByPosition(storyId);
+        if (orderedEvents.isEmpty()) {
+            throw new ResourceNotFoundException("No starting event found");
         }
         StringBuilder sb = new StringBuilder();
 
@@ -228,78 +306,20 @@ public class StoryService {
         }
     }
 
+    // Give a newly registered user their own copy of the demo story, see ProvisioningService
     @Transactional
-    public void cloneDemoStoryForUser(Users newUser) {
-        Story template = storyRepo.findById(DEMO_TEMPLATE_ID)
-                .orElseThrow(() -> new IllegalStateException("Demo template missing"));
-
-        Story clone = new Story();
-        clone.setTitle(template.getTitle());
-        clone.setDescription(template.getDescription());
-        clone.setDateFormat(template.getDateFormat());
-        clone.setUser(newUser);
-        storyRepo.save(clone);
-
-        Map<Long, TagType> typeMap = new HashMap<>();
-        tagTypeRepo.findByStory_StoryId(DEMO_TEMPLATE_ID)
-                .forEach(oldType -> {
-                    TagType t = new TagType();
-                    t.setName(oldType.getName());
-                    t.setStory(clone);
-                    tagTypeRepo.save(t);
-                    typeMap.put(oldType.getTagTypeId(), t);
-                });
-
-        // 4) clone Tags
-        Map<Long, Tag> tagMap = new HashMap<>();
-        tagRepo.findByStory_StoryId(DEMO_TEMPLATE_ID)
-                .forEach(oldTag -> {
-                    Tag t = new Tag();
-                    t.setTagName(oldTag.getTagName());
-                    t.setColor(oldTag.getColor());
-                    t.setTagType(typeMap.get(oldTag.getTagType().getTagTypeId()));
-                    t.setStory(clone);
-                    tagRepo.save(t);
-                    tagMap.put(oldTag.getTagId(), t);
-                });
-
-        characterRepo.findByTag_Story_StoryId(DEMO_TEMPLATE_ID)
-                .forEach(oldChar -> {
-                    Character c = new Character();
-                    c.setShortDescription(oldChar.getShortDescription());
-                    c.setDescription(oldChar.getDescription());
-                    c.setTag(tagMap.get(oldChar.getTag().getTagId()));
-                    c.setImage(oldChar.getImage());
-                    c.setImageContentType(oldChar.getImageContentType());
-                    characterRepo.save(c);
-                });
-
-        Map<Long, PlotEvent> eventMap = new HashMap<>();
-        plotEventRepo.findByStory_StoryId(DEMO_TEMPLATE_ID)
-                .forEach(oldE -> {
-                    PlotEvent e = new PlotEvent();
-                    e.setTitle(oldE.getTitle());
-                    e.setDate(oldE.getDate());
-                    e.setEventType(oldE.getEventType());
-                    e.setDescription(oldE.getDescription());
-                    e.setContent(oldE.getContent());
-                    e.setInPlot(oldE.getInPlot());
-                    e.setStory(clone);
-                    plotEventRepo.save(e);
-                    eventMap.put(oldE.getEventId(), e);
-                });
-
-        plotEventRepo.findByStory_StoryId(DEMO_TEMPLATE_ID)
-                .forEach(oldE -> {
-                    PlotEvent e = eventMap.get(oldE.getEventId());
-                    if (oldE.getPrevEvent() != null)
-                        e.setPrevEvent(eventMap.get(oldE.getPrevEvent().getEventId()));
-                    if (oldE.getNextEvent() != null)
-                        e.setNextEvent(eventMap.get(oldE.getNextEvent().getEventId()));
-                    oldE.getTags().forEach(oldTag ->
-                            e.getTags().add(tagMap.get(oldTag.getTagId()))
-                    );
-                    plotEventRepo.save(e);
-                });
+    public void cloneDemoStoryForUser(Long userId) {
+        Long cloneId = storyCloneRepo.insertSnapshot(demoTemplateCache.get(), userId);
+        characterImageService.addStoryReferences(cloneId);
+    }
+
+    // Duplicate one of the user's stories with all its tags, characters and plot events
+    @Transactional
+    public Story duplicateStory(Long userId, Long storyId) {
+        StoryAccess story = accessGuard.checkStory(storyId, userId);
+        Long cloneId = storyCloneRepo.cloneStory(storyId, story.userId());
+        characterImageService.addStoryReferences(cloneId);
+        return storyRepo.findById(cloneId)
+                .orElseThrow(() -> new ResourceNotFoundException("Story not found"));
     }
 }
\ No newline at end of file
@@ -2,20 +2,16 @@ package com.sinenomine.plottracker.service;
 
 import com.sinenomine.plottracker.dto.*;
 import com.sinenomine.plottracker.exception.ResourceNotFoundException;
-import com.sinenomine.plottracker.exception.UnauthorizedException;
-import com.sinenomine.plottracker.model.Story;
 import com.sinenomine.plottracker.model.Tag;
 import com.sinenomine.plottracker.model.Character;
 import com.sinenomine.plottracker.model.TagType;
 import com.sinenomine.plottracker.repo.*;
-import org.apache.commons.lang3.tuple.ImmutablePair;
-import org.apache.commons.lang3.tuple.Pair;
-import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 import java.util.Set;
 
@@ -25,52 +21,49 @@ public class TagService {
     private final StoryRepo storyRepo;
     private final TagRepo tagRepo;
     private final CharacterRepo characterRepo;
+    private final CharacterImageService characterImageService;
     private final TagTypeRepo tagTypeRepo;
     private final PlotEventRepo plotEventRepo;
-    private final StoryService storyService;
+    private final AccessGuard accessGuard;
+    private final DemoTemplateCache demoTemplateCache;
 
-    public TagService(StoryRepo storyRepo, TagRepo tagRepo, CharacterRepo characterRepo, TagTypeRepo tagTypeRepo, PlotEventRepo plotEventRepo, StoryService storyService) {
+    public TagService(StoryRepo storyRepo, TagRepo tagRepo, CharacterRepo characterRepo, CharacterImageService characterImageService, TagTypeRepo tagTypeRepo, PlotEventRepo plotEventRepo, AccessGuard accessGuard, DemoTemplateCache demoTemplateCache) {
         this.storyRepo = storyRepo;
         this.tagRepo = tagRepo;
         this.tagTypeRepo = tagTypeRepo;
         this.plotEventRepo = plotEventRepo;
-        this.storyService = storyService;
+        this.accessGuard = accessGuard;
+        this.demoTemplateCache = demoTemplateCache;
         this.characterRepo = characterRepo;
+        this.characterImageService = characterImageService;
     }
 
-    public Set<Tag> getTags(Long storyId, String username) {
-        Story story = storyService.getStoryByIdAndUser(storyId, username);
-        return tagRepo.findByStory(story);
+    public Set<Tag> getTags(Long storyId, Long userId) {
+        accessGuard.checkStory(storyId, userId);
+        return tagRepo.findByStory(storyRepo.getReferenceById(storyId));
     }
 
-    public List<TagResponseDto> getTagResponses(Long storyId, String username) {
-        Story story = storyService.getStoryByIdAndUser(storyId, username);
-        return tagRepo.findByStoryResponses(story);
+    public List<TagResponseDto> getTagResponses(Long storyId, Long userId) {
+        accessGuard.checkStory(storyId, userId);
+        return tagRepo.findByStoryResponses(storyId);
     }
 
-    public TagResponseDto getTag(Long storyId, Long tagId, String username) {
-        Story story = storyService.getStoryByIdAndUser(storyId, username);
-        Tag tag = tagRepo.findById(tagId)
-                .orElseThrow(() -> new ResourceNotFoundException("Tag not found"));
-        if (!tag.getStory().getStoryId().equals(story.getStoryId())) {
-            throw new UnauthorizedException("Unauthorized access to tag");
-        }
-        return new TagResponseDto(tag.getTagId(), tag.getTagName(),
-                tag.getTagType().getTagTypeId(),
-                tag.getTagType().getName(), tag.getColor());
+    public TagResponseDto getTag(Long storyId, Long tagId, Long userId) {
+        accessGuard.checkTag(storyId, tagId, userId);
+        return tagRepo.findResponseById(tagId);
     }
 
-    public Tag createTag(Long storyId, TagRequestDto tagRequestDto, String username) {
-        Story story = storyService.getStoryByIdAndUser(storyId, username);
+    @Transactional
+    public Tag createTag(Long storyId, TagRequestDto tagRequestDto, Long userId) {
+        // The tag type has to belong to the story, which covers the ownership of the story as well
+        accessGuard.checkTagType(storyId, tagRequestDto.getTagTypeId(), userId);
+        demoTemplateCache.evict(storyId);
+        storyRepo.incrementVersion(storyId);
         Tag tag = new Tag();
         tag.setTagName(tagRequestDto.getTagName());
-        TagType tagType = tagTypeRepo.findById(tagRequestDto.getTagTypeId())
-                .orElseThrow(() -> new ResourceNotFoundException("TagType not found"));
-        if (!tagType.getStory().getStoryId().equals(story.getStoryId()))
-            throw new UnauthorizedException("Unauthorized access to tag type");
-
+        TagType tagType = tagTypeRepo.getReferenceById(tagRequestDto.getTagTypeId());
         tag.setTagType(tagType);
-        tag.setStory(story);
+        tag.setStory(storyRepo.getReferenceById(storyId));
         tag.setColor(tagRequestDto.getColor());
         Tag save = tagRepo.save(tag);
 
@@ -82,140 +75,134 @@ public class TagService {
         return save;
     }
 
-    public Tag updateTag(Long storyId, Long tagId, TagRequestDto tagRequestDto, String username) {
-        Story story = storyService.getStoryByIdAndUser(storyId, username);
+    @Transactional
+    public Tag updateTag(Long storyId, Long tagId, TagRequestDto tagRequestDto, Long userId) {
+        accessGuard.checkTag(storyId, tagId, userId);
+        accessGuard.checkTagType(storyId, tagRequestDto.getTagTypeId(), userId);
+        demoTemplateCache.evict(storyId);
+        storyRepo.incrementVersion(storyId);
         Tag tag = tagRepo.findById(tagId)
                 .orElseThrow(() -> new ResourceNotFoundException("Tag not found"));
-        if (!tag.getStory().getStoryId().equals(story.getStoryId())) {
-            throw new UnauthorizedException("Unauthorized access to tag");
-        }
         tag.setTagName(tagRequestDto.getTagName());
-        TagType tagType = tagTypeRepo.findById(tagRequestDto.getTagTypeId())
-                .orElseThrow(() -> new ResourceNotFoundException("TagType not found"));
-        if (!tagType.getStory().getStoryId().equals(story.getStoryId()))
-            throw new UnauthorizedException("Unauthorized access to tag type");
-        tag.setTagType(tagType);
+        tag.setTagType(tagTypeRepo.getReferenceById(tagRequestDto.getTagTypeId()));
         tag.setColor(tagRequestDto.getColor());
         return tagRepo.save(tag);
     }
 
     @Transactional
-    public void deleteTag(Long storyId, Long tagId, String username) {
-        Story story = storyService.getStoryByIdAndUser(storyId, username);
-        Tag tag = tagRepo.findById(tagId)
-                .orElseThrow(() -> new ResourceNotFoundException("Tag not found"));
-        if (!tag.getStory().getStoryId().equals(story.getStoryId())) {
-            throw new UnauthorizedException("Unauthorized access to tag");
-        }
+    public void deleteTag(Long storyId, Long tagId, Long userId) {
+        accessGuard.checkTag(storyId, tagId, userId);
+        demoTemplateCache.evict(storyId);
+        storyRepo.incrementVersion(storyId);
         plotEventRepo.deletePlotEventTagByTagId(tagId);
-        if (tag.getTagType().getName().equals("Character")) {
-            characterRepo.deleteByTag_TagId(tagId);
+        // Only tags of the Character type have one
+        Character character = characterRepo.findByTag_TagId(tagId);
+        if (character != null) {
+            characterRepo.delete(character);
+            if (character.getImageHash() != null)
+                characterImageService.releaseReference(character.getImageHash());
         }
 
-        tagRepo.delete(tag);
+        tagRepo.deleteByTagId(tagId);
+        accessGuard.evictTag(tagId);
     }
 
-    public List<TagTypeResponseDto> getTagTypeResponses(Long storyId, String username) {
-        Story story = storyService.getStoryByIdAndUser(storyId, username);
-        return tagTypeRepo.findByStoryResponses(story);
+    public List<TagTypeResponseDto> getTagTypeResponses(Long storyId, Long userId) {
+        accessGuard.checkStory(storyId, userId);
+        return tagTypeRepo.findByStoryResponses(storyId);
     }
 
-    public TagType getTagType(Long storyId, Long tagTypeId, String username) {
-        Story story = storyService.getStoryByIdAndUser(storyId, username);
-        TagType tagType = tagTypeRepo.findById(tagTypeId)
+    public TagType getTagType(Long storyId, Long tagTypeId, Long userId) {
+        accessGuard.checkTagType(storyId, tagTypeId, userId);
+        return tagTypeRepo.findById(tagTypeId)
                 .orElseThrow(() -> new ResourceNotFoundException("TagType not found"));
-        if (!tagType.getStory().getStoryId().equals(story.getStoryId())) {
-            throw new UnauthorizedException("Unauthorized access to tag type");
-        }
-        return tagType;
     }
 
-    public TagType createTagType(Long storyId, TagTypeRequestDto tagTypeRequestDto, String username) {
-        Story story = storyService.getStoryByIdAndUser(storyId, username);
+    @Transactional
+    public TagType createTagType(Long storyId, TagTypeRequestDto tagTypeRequestDto, Long userId) {
+        accessGuard.checkStory(storyId, userId);
+        demoTemplateCache.evict(storyId);
+        storyRepo.incrementVersion(storyId);
         TagType tagType = new TagType();
         tagType.setName(tagTypeRequestDto.getName());
-        tagType.setStory(story);
+        tagType.setStory(storyRepo.getReferenceById(storyId));
         return tagTypeRepo.save(tagType);
     }
 
-    public TagType updateTagType(Long storyId, Long tagTypeId, TagTypeRequestDto tagTypeRequestDto, String username) {
-        Story story = storyService.getStoryByIdAndUser(storyId, username);
+    @Transactional
+    public TagType updateTagType(Long storyId, Long tagTypeId, TagTypeRequestDto tagTypeRequestDto, Long userId) {
+        accessGuard.checkTagType(storyId, tagTypeId, userId);
+        demoTemplateCache.evict(storyId);
+        storyRepo.incrementVersion(storyId);
         TagType tagType = tagTypeRepo.findById(tagTypeId)
                 .orElseThrow(() -> new ResourceNotFoundException("TagType not found"));
-        if (!tagType.getStory().getStoryId().equals(story.getStoryId())) {
-            throw new UnauthorizedException("Unauthorized access to tag type");
-        }
         tagType.setName(tagTypeRequestDto.getName());
         return tagTypeRepo.save(tagType);
     }
 
     @Transactional
-    public void deleteTagType(Long storyId, Long tagTypeId, String username) {
-        Story story = storyService.getStoryByIdAndUser(storyId, username);
-        TagType tagType = tagTypeRepo.findById(tagTypeId)
-                .orElseThrow(() -> new ResourceNotFoundException("TagType not found"));
-        if (!tagType.getStory().getStoryId().equals(story.getStoryId())) {
-            throw new UnauthorizedException("Unauthorized access to tag type");
-        }
-        tagRepo.deleteByTagType_TagTypeId(tagTypeId);
-        tagTypeRepo.delete(tagType);
-    }
-
-    public CharacterResponseDto getCharacterTag(Long storyId, Long tagId, String username) {
-        Story story = storyService.getStoryByIdAndUser(storyId, username);
-        Tag tag = tagRepo.findById(tagId)
-                .orElseThrow(() -> new ResourceNotFoundException("Tag not found"));
-        if (!tag.getStory().getStoryId().equals(story.getStoryId())) {
-            throw new UnauthorizedException("Unauthorized access to tag");
-        }
+    public void deleteTagType(Long storyId, Long tagTypeId, Long userId) {
+        accessGuard.checkTagType(storyId, tagTypeId, userId);
+        demoTemplateCache.evict(storyId);
+        storyRepo.incrementVersion(storyId);
+        for (Tag tag : tagRepo.deleteByTagType_TagTypeId(tagTypeId))
+            accessGuard.evictTag(tag.getTagId());
+        tagTypeRepo.deleteById(tagTypeId);
+        accessGuard.evictTagType(tagTypeId);
+    }
+
+    // The character row comes with its tag, so the tag is not read on its own
+    public CharacterResponseDto getCharacterTag(Long storyId, Long tagId, Long userId) {
+        accessGuard.checkTag(storyId, tagId, userId);
         Character character = characterRepo.findByTag_TagId(tagId);
-        return new CharacterResponseDto(character.getCharacterId(), tag.getTagName(), character.getShortDescription(), character.getDescription());
+        return new CharacterResponseDto(character.getCharacterId(), character.getTag().getTagName(), character.getShortDescription(), character.getDescription(), character.getImageHash());
     }
 
-    public CharacterResponseDto updateCharacterTag(Long storyId, Long tagId, CharacterRequestDto characterRequestDto, String username) {
-        Story story = storyService.getStoryByIdAndUser(storyId, username);
-        Tag tag = tagRepo.findById(tagId)
-                .orElseThrow(() -> new ResourceNotFoundException("Tag not found"));
-        if (!tag.getStory().getStoryId().equals(story.getStoryId())) {
-            throw new UnauthorizedException("Unauthorized access to tag");
-        }
-        tag.setTagName(characterRequestDto.getName());
+    @Transactional
+    public CharacterResponseDto updateCharacterTag(Long storyId, Long tagId, CharacterRequestDto characterRequestDto, Long userId) {
+        accessGuard.checkTag(storyId, tagId, userId);
+        demoTemplateCache.evict(storyId);
+        storyRepo.incrementVersion(storyId);
         Character character = characterRepo.findByTag_TagId(tagId);
+        Tag tag = character.getTag();
+        tag.setTagName(characterRequestDto.getName());
         character.setShortDescription(characterRequestDto.getShortDescription());
         character.setDescription(characterRequestDto.getDescription());
 
         tagRepo.save(tag);
         characterRepo.save(character);
 
-        return new CharacterResponseDto(character.getCharacterId(), tag.getTagName(), character.getShortDescription(), character.getDescription());
+        return new CharacterResponseDto(character.getCharacterId(), tag.getTagName(), character.getShortDescription(), character.getDescription(), character.getImageHash());
     }
 
     @Transactional
-    public void loadCharacterImage(Long storyId, Long tagId, MultipartFile file, String username) throws IOException {
-        Story story = storyService.getStoryByIdAndUser(storyId, username);
-        Tag tag = tagRepo.findById(tagId)
-                .orElseThrow(() -> new ResourceNotFoundException("Tag not found"));
-        if (!tag.getStory().getStoryId().equals(story.getStoryId())) {
-            throw new UnauthorizedException("Unauthorized access to tag");
-        }
+    public void loadCharacterImage(Long storyId, Long tagId, MultipartFile file, Long userId) throws IOException {
+        accessGuard.checkTag(storyId, tagId, userId);
+        demoTemplateCache.evict(storyId);
         Character character = characterRepo.findByTag_TagId(tagId);
-        character.setImage(file.getBytes());
-        character.setImageContentType(file.getContentType());
+        String imageHash;
+        try (InputStream data = file.getInputStream()) {
+            imageHash = characterImageService.store(data);
+        }
+
+        String previousHash = character.getImageHash();
+        if (imageHash.equals(previousHash))
+            return;
+        // Only now, so the story row is not locked while the upload is written
+        storyRepo.incrementVersion(storyId);
+        characterImageService.addReference(imageHash);
+        character.setImageHash(imageHash);
         characterRepo.save(character);
+        if (previousHash != null)
+            characterImageService.releaseReference(previousHash);
     }
 
-    @Transactional
-    public Pair<MediaType, byte[]> getCharacterImage(Long storyId, Long tagId, String username) {
-        Story story = storyService.getStoryByIdAndUser(storyId, username);
-        Tag tag = tagRepo.findById(tagId)
-                .orElseThrow(() -> new ResourceNotFoundException("Tag not found"));
-        if (!tag.getStory().getStoryId().equals(story.getStoryId())) {
-            throw new UnauthorizedException("Unauthorized access to tag");
-        }
-        Character character = characterRepo.findByTag_TagId(tagId);
-        if(character.getImageContentType() == null)
-                throw new ResourceNotFoundException("Image not found");
-        MediaType mediaType = MediaType.parseMediaType(character.getImageContentType());
-        return new ImmutablePair<>(mediaType, character.getImage());
+    // Hash of the character's current image; cheap enough to run for every conditional request
+    public String getCharacterImageHash(Long storyId, Long tagId, Long userId) {
+        accessGuard.checkTag(storyId, tagId, userId);
+        String imageHash = characterRepo.findImageHashByTagId(tagId);
+        if (imageHash == null)
+            throw new ResourceNotFoundException("Image not found");
+        return imageHash;
     }
 }
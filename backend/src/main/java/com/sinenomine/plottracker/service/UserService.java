@@ -4,95 +4,133 @@ import com.sinenomine.plottracker.dto.ChangePasswordRequestDto;
 import com.sinenomine.plottracker.dto.DeleteUserRequestDto;
 import com.sinenomine.plottracker.dto.UserDto;
 import com.sinenomine.plottracker.exception.*;
+import com.sinenomine.plottracker.model.UserPrincipal;
 import com.sinenomine.plottracker.model.Users;
 import com.sinenomine.plottracker.repo.UserRepo;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
-import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 
 @Service
 public class UserService {
 
     private final UserRepo userRepo;
-    private final BCryptPasswordEncoder passwordEncoder;
+    private final PasswordEncoder passwordEncoder;
     private final JWTService jwtService;
     private final AuthenticationManager authManager;
 
-    private final StoryService storyService;
+    private final ProvisioningService provisioningService;
+    private final TransactionTemplate transactionTemplate;
+    private final AccessGuard accessGuard;
+    private final MyUserDetailsService myUserDetailsService;
+    private final LoginThrottle loginThrottle;
+    private final Timer registrationTimer;
 
     public UserService(UserRepo userRepo,
-                       BCryptPasswordEncoder passwordEncoder,
+                       PasswordEncoder passwordEncoder,
                        JWTService jwtService,
                        AuthenticationManager authManager,
-                       StoryService storyService) {
+                       ProvisioningService provisioningService,
+                       TransactionTemplate transactionTemplate,
+                       AccessGuard accessGuard,
+                       MyUserDetailsService myUserDetailsService,
+                       LoginThrottle loginThrottle,
+                       MeterRegistry meterRegistry) {
         this.userRepo = userRepo;
         this.passwordEncoder = passwordEncoder;
         this.jwtService = jwtService;
         this.authManager = authManager;
-        this.storyService = storyService;
+        this.provisioningService = provisioningService;
+        this.transactionTemplate = transactionTemplate;
+        this.accessGuard = accessGuard;
+        this.myUserDetailsService = myUserDetailsService;
+        this.loginThrottle = loginThrottle;
+        this.registrationTimer = Timer.builder("plottracker.registration")
+                .description("Time to create an account; the demo story is copied afterwards, see plottracker.provisioning")
+                .register(meterRegistry);
     }
 
     public Users register(UserDto userDto) {
+        return registrationTimer.record(() -> createUser(userDto));
+    }
+
+    private Users createUser(UserDto userDto) {
         if (userRepo.findByUsername(userDto.getUsername()) != null) {
             throw new UsernameExistsException(userDto.getUsername());
         }
         Users newUser = new Users();
         newUser.setUsername(userDto.getUsername());
+        // Hashed before the transaction, which then holds its connection only for the two inserts
         newUser.setPassword(passwordEncoder.encode(userDto.getPassword()));
-        userRepo.save(newUser);
-
-        storyService.cloneDemoStoryForUser(newUser);
-
+        transactionTemplate.executeWithoutResult(status -> {
+            // Flushed right away: the task row refers to the user
+            userRepo.saveAndFlush(newUser);
+            provisioningService.schedule(newUser.getUserId());
+        });
         return newUser;
     }
 
-    public String authenticate(Users user) {
+    public String getProvisioningStatus(Long userId) {
+        return provisioningService.getStatus(userId);
+    }
+
+    // Failed attempts count against the username and the client address; past their limit the password is not even
+    // checked any more. A full hash queue is not an AuthenticationException and passes through without counting
+    public String authenticate(Users user, String clientAddress) {
+        loginThrottle.check(user.getUsername(), clientAddress);
+        Authentication authentication;
         try {
-            Authentication authentication = authManager.authenticate(
+            authentication = authManager.authenticate(
                     new UsernamePasswordAuthenticationToken(user.getUsername(), user.getPassword())
             );
-            if (authentication.isAuthenticated()) {
-                return jwtService.generateToken(user.getUsername());
-            }
-            throw new AuthException("Authentication failed");
-        } catch (Exception e) {
+        } catch (AuthenticationException e) {
+            loginThrottle.recordFailure(user.getUsername(), clientAddress);
             throw new AuthException("Invalid username or password");
         }
+        if (!authentication.isAuthenticated())
+            throw new AuthException("Authentication failed");
+        loginThrottle.recordSuccess(user.getUsername());
+        return jwtService.generateToken((UserPrincipal) authentication.getPrincipal());
     }
 
-    public void changePassword(String username, ChangePasswordRequestDto request) {
-        Users user = userRepo.findByUsername(username);
-        if (user == null) {
-            throw new UserNotFoundException("User not found");
-        }
+    // Ends every other session of the account; returns a new token for the one that changed the password
+    public String changePassword(Long userId, ChangePasswordRequestDto request) {
+        Users user = userRepo.findById(userId)
+                .orElseThrow(() -> new UserNotFoundException("User not found"));
         if (!passwordEncoder.matches(request.getCurrentPassword(), user.getPassword())) {
             throw new InvalidPasswordException("Current password is incorrect");
         }
         user.setPassword(passwordEncoder.encode(request.getNewPassword()));
+        user.revokeTokens();
         userRepo.save(user);
+        myUserDetailsService.evict(userId);
+        return jwtService.generateToken(new UserPrincipal(user));
     }
 
-    public void deleteUser(String username, DeleteUserRequestDto request) {
-        Users user = userRepo.findByUsername(username);
-        if (user == null) {
-            throw new UserNotFoundException("User not found");
-        }
+    public void deleteUser(Long userId, DeleteUserRequestDto request) {
+        Users user = userRepo.findById(userId)
+                .orElseThrow(() -> new UserNotFoundException("User not found"));
         if (!passwordEncoder.matches(request.getPassword(), user.getPassword())) {
             throw new InvalidPasswordException("Password is incorrect");
         }
         user.setUsername(RandomStringUtils.random(50, true, true));
+        user.revokeTokens();
         userRepo.save(user);
+        accessGuard.evictUser(userId);
+        myUserDetailsService.evict(userId);
         //userRepo.delete(user);
     }
 
-    public Users getUser(String username) {
-        Users user = userRepo.findByUsername(username);
-        if (user == null) {
-            throw new UserNotFoundException("User not found");
-        }
+    public Users getUser(Long userId) {
+        Users user = userRepo.findById(userId)
+                .orElseThrow(() -> new UserNotFoundException("User not found"));
         user.setPassword(null);
         return user;
     }
@@ -0,0 +1,3 @@
+-- Access tokens carry the version they were issued for; raising it revokes every token of the account.
+
+ALTER TABLE users ADD COLUMN token_version INT NOT NULL DEFAULT 0;
@@ -0,0 +1,13 @@
+-- Outbox of work to do for new accounts, written in the registration transaction and worked off in the background.
+-- Rows stay after they are done, as the provisioning status the frontend polls; accounts without a row are done.
+
+CREATE TABLE provisioning_task (
+    user_id         BIGINT       NOT NULL,
+    status          VARCHAR(16)  NOT NULL DEFAULT 'PENDING',
+    attempts        INT          NOT NULL DEFAULT 0,
+    next_attempt_at DATETIME(6)  NOT NULL DEFAULT CURRENT_TIMESTAMP(6),
+    last_error      VARCHAR(500) NULL,
+    PRIMARY KEY (user_id),
+    INDEX idx_provisioning_task_due (status, next_attempt_at),
+    CONSTRAINT fk_provisioning_task_user FOREIGN KEY (user_id) REFERENCES users (user_id)
+) ENGINE = InnoDB;
@@ -0,0 +1,3 @@
+-- Raised by every change to a story or anything in it; conditional GETs of the story answer from it.
+
+ALTER TABLE story ADD COLUMN version BIGINT NOT NULL DEFAULT 0;
@@ -0,0 +1,78 @@
+-- Schema as it was created by spring.jpa.hibernate.ddl-auto=update before migrations took over.
+-- Existing databases are baselined at this version (spring.flyway.baseline-on-migrate) and skip this script.
+
+CREATE TABLE users (
+    user_id  BIGINT       NOT NULL AUTO_INCREMENT,
+    password VARCHAR(255) NOT NULL,
+    username VARCHAR(50)  NOT NULL,
+    PRIMARY KEY (user_id),
+    CONSTRAINT uk_users_username UNIQUE (username)
+) ENGINE = InnoDB;
+
+CREATE TABLE story (
+    story_id    BIGINT       NOT NULL AUTO_INCREMENT,
+    date_format VARCHAR(255),
+    description VARCHAR(255),
+    title       VARCHAR(255) NOT NULL,
+    user_id     BIGINT       NOT NULL,
+    PRIMARY KEY (story_id),
+    CONSTRAINT fk_story_user FOREIGN KEY (user_id) REFERENCES users (user_id)
+) ENGINE = InnoDB;
+
+CREATE TABLE tag_type (
+    tag_type_id BIGINT      NOT NULL AUTO_INCREMENT,
+    name        VARCHAR(50) NOT NULL,
+    story_id    BIGINT      NOT NULL,
+    PRIMARY KEY (tag_type_id),
+    CONSTRAINT fk_tag_type_story FOREIGN KEY (story_id) REFERENCES story (story_id)
+) ENGINE = InnoDB;
+
+CREATE TABLE tag (
+    tag_id      BIGINT       NOT NULL AUTO_INCREMENT,
+    color       VARCHAR(7)   NOT NULL,
+    tag_name    VARCHAR(100) NOT NULL,
+    story_id    BIGINT       NOT NULL,
+    tag_type_id BIGINT       NOT NULL,
+    PRIMARY KEY (tag_id),
+    CONSTRAINT fk_tag_story FOREIGN KEY (story_id) REFERENCES story (story_id),
+    CONSTRAINT fk_tag_tag_type FOREIGN KEY (tag_type_id) REFERENCES tag_type (tag_type_id)
+) ENGINE = InnoDB;
+
+CREATE TABLE characters (
+    character_id       BIGINT NOT NULL AUTO_INCREMENT,
+    description        TEXT,
+    image              LONGBLOB,
+    image_content_type VARCHAR(100),
+    short_description  VARCHAR(255),
+    tag_id             BIGINT NOT NULL,
+    PRIMARY KEY (character_id),
+    CONSTRAINT uk_characters_tag UNIQUE (tag_id),
+    CONSTRAINT fk_characters_tag FOREIGN KEY (tag_id) REFERENCES tag (tag_id)
+) ENGINE = InnoDB;
+
+CREATE TABLE plot_event (
+    event_id      BIGINT                             NOT NULL AUTO_INCREMENT,
+    content       TEXT,
+    date          VARCHAR(50),
+    description   VARCHAR(255),
+    event_type    ENUM ('dated', 'memory', 'undated') NOT NULL,
+    is_in_plot    BIT,
+    title         VARCHAR(255)                       NOT NULL,
+    memory_ref_id BIGINT,
+    next_event_id BIGINT,
+    prev_event_id BIGINT,
+    story_id      BIGINT                             NOT NULL,
+    PRIMARY KEY (event_id),
+    CONSTRAINT FK_memory_ref FOREIGN KEY (memory_ref_id) REFERENCES plot_event (event_id),
+    CONSTRAINT FK_next_event FOREIGN KEY (next_event_id) REFERENCES plot_event (event_id),
+    CONSTRAINT FK_prev_event FOREIGN KEY (prev_event_id) REFERENCES plot_event (event_id),
+    CONSTRAINT fk_plot_event_story FOREIGN KEY (story_id) REFERENCES story (story_id)
+) ENGINE = InnoDB;
+
+CREATE TABLE plot_event_tag (
+    event_id BIGINT NOT NULL,
+    tag_id   BIGINT NOT NULL,
+    PRIMARY KEY (event_id, tag_id),
+    CONSTRAINT fk_plot_event_tag_event FOREIGN KEY (event_id) REFERENCES plot_event (event_id),
+    CONSTRAINT fk_plot_event_tag_tag FOREIGN KEY (tag_id) REFERENCES tag (tag_id)
+) ENGINE = InnoDB;
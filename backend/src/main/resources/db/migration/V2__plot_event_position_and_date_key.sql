@@ -0,0 +1,32 @@
+-- Story order moves from the prev/next linked list to a gapped position rank (see PlotEventService.POSITION_GAP),
+-- and events get a numeric date key that is filled by V3.
+
+ALTER TABLE plot_event
+    ADD COLUMN position BIGINT NULL,
+    ADD COLUMN date_key BIGINT NULL;
+
+-- Each chain is walked from its head; the default recursion limit of 1000 would cut long stories short
+SET SESSION cte_max_recursion_depth = 1000000;
+
+UPDATE plot_event p JOIN (
+    WITH RECURSIVE chain (event_id, story_id, head_id, depth) AS (
+        SELECT event_id, story_id, event_id, 1 FROM plot_event
+        WHERE is_in_plot = TRUE AND prev_event_id IS NULL
+        UNION ALL
+        SELECT n.event_id, n.story_id, c.head_id, c.depth + 1 FROM chain c
+        JOIN plot_event n ON n.prev_event_id = c.event_id
+    )
+    SELECT event_id, ROW_NUMBER() OVER (PARTITION BY story_id ORDER BY head_id, depth) AS rn FROM chain
+) ordered ON ordered.event_id = p.event_id
+SET p.position = ordered.rn * 65536;
+
+ALTER TABLE plot_event
+    DROP FOREIGN KEY FK_prev_event,
+    DROP FOREIGN KEY FK_next_event;
+
+ALTER TABLE plot_event
+    DROP COLUMN prev_event_id,
+    DROP COLUMN next_event_id;
+
+CREATE INDEX idx_plot_event_story_position ON plot_event (story_id, position);
+CREATE INDEX idx_plot_event_story_date_key ON plot_event (story_id, date_key);
@@ -0,0 +1,8 @@
+-- Indexes for the per-story and per-owner lookups in StoryRepo, TagRepo, TagTypeRepo and PlotEventRepo.
+-- characters.tag_id is covered by uk_characters_tag and plot_event.story_id by the V2 composite indexes.
+
+CREATE INDEX idx_story_user ON story (user_id);
+CREATE INDEX idx_tag_type_story ON tag_type (story_id);
+CREATE INDEX idx_tag_story_tag_type ON tag (story_id, tag_type_id);
+CREATE INDEX idx_tag_tag_type ON tag (tag_type_id);
+CREATE INDEX idx_plot_event_tag_tag ON plot_event_tag (tag_id, event_id);
@@ -0,0 +1,10 @@
+-- Scratch table for StoryCloneRepo: pairs every copied row with its copy while a story is being cloned.
+-- Rows are keyed by the id of the new story and removed again before the cloning transaction commits.
+
+CREATE TABLE clone_id_map (
+    clone_story_id BIGINT      NOT NULL,
+    kind           VARCHAR(16) NOT NULL,
+    old_id         BIGINT      NOT NULL,
+    new_id         BIGINT      NOT NULL,
+    PRIMARY KEY (clone_story_id, kind, old_id)
+) ENGINE = InnoDB;
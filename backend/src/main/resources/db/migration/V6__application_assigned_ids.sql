@@ -0,0 +1,13 @@
+-- Ids are assigned by TimeOrderedIdGenerator before the insert, so Hibernate can batch inserts.
+-- MySQL refuses to change a column that a foreign key references unless the checks are off for the session.
+
+SET FOREIGN_KEY_CHECKS = 0;
+
+ALTER TABLE users MODIFY user_id BIGINT NOT NULL;
+ALTER TABLE story MODIFY story_id BIGINT NOT NULL;
+ALTER TABLE tag_type MODIFY tag_type_id BIGINT NOT NULL;
+ALTER TABLE tag MODIFY tag_id BIGINT NOT NULL;
+ALTER TABLE characters MODIFY character_id BIGINT NOT NULL;
+ALTER TABLE plot_event MODIFY event_id BIGINT NOT NULL;
+
+SET FOREIGN_KEY_CHECKS = 1;
@@ -0,0 +1,24 @@
+-- Character images move out of the characters row into a table keyed by the SHA-256 of their bytes.
+-- Identical images are stored once; characters keep only the hash.
+
+CREATE TABLE character_image (
+    image_hash   CHAR(64)     NOT NULL,
+    content_type VARCHAR(100) NOT NULL,
+    size         BIGINT       NOT NULL,
+    data         LONGBLOB     NOT NULL,
+    PRIMARY KEY (image_hash)
+) ENGINE = InnoDB;
+
+INSERT IGNORE INTO character_image (image_hash, content_type, size, data)
+SELECT SHA2(image, 256), COALESCE(image_content_type, 'application/octet-stream'), LENGTH(image), image
+FROM characters
+WHERE image IS NOT NULL;
+
+ALTER TABLE characters ADD COLUMN image_hash CHAR(64) NULL;
+
+UPDATE characters SET image_hash = SHA2(image, 256) WHERE image IS NOT NULL;
+
+ALTER TABLE characters
+    DROP COLUMN image,
+    DROP COLUMN image_content_type,
+    ADD CONSTRAINT fk_characters_image FOREIGN KEY (image_hash) REFERENCES character_image (image_hash);
@@ -0,0 +1,14 @@
+-- Key ring for signing JWTs, shared by all backend nodes. The newest key signs; older keys only verify until
+-- expires_at, which is set when a newer key replaces them and leaves time for the tokens they signed to run out.
+-- The first key is created here so the ring is never empty.
+
+CREATE TABLE jwt_signing_key (
+    kid        CHAR(36)     NOT NULL,
+    secret     VARBINARY(64) NOT NULL,
+    created_at DATETIME(6)  NOT NULL DEFAULT CURRENT_TIMESTAMP(6),
+    expires_at DATETIME(6)  NULL,
+    PRIMARY KEY (kid),
+    INDEX idx_jwt_signing_key_created_at (created_at)
+) ENGINE = InnoDB;
+
+INSERT INTO jwt_signing_key (kid, secret) VALUES (UUID(), RANDOM_BYTES(32));
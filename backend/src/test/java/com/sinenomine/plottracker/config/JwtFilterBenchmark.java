@@ -0,0 +1,86 @@
+package com.sinenomine.plottracker.config;
+
+import com.sinenomine.plottracker.model.UserPrincipal;
+import com.sinenomine.plottracker.repo.JwtSigningKeyRepo;
+import com.sinenomine.plottracker.repo.UserRepo;
+import com.sinenomine.plottracker.service.JWTService;
+import com.sinenomine.plottracker.service.JwtKeyRing;
+import com.sinenomine.plottracker.service.MyUserDetailsService;
+import io.jsonwebtoken.Claims;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.http.Cookie;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-request cost of {@link JwtFilter} for a valid token whose token version is already cached, which is the steady
+ * state of the story page, next to the cost of verifying the token alone. Not part of the test run; start it with
+ * {@link #main} from the IDE, or from the command line with the test classpath:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) org.openjdk.jmh.Main JwtFilterBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JwtFilterBenchmark {
+
+    private JWTService jwtService;
+    private JwtFilter filter;
+    private String token;
+
+    @Setup
+    public void setUp() {
+        JwtSigningKeyRepo jwtSigningKeyRepo = Mockito.mock(JwtSigningKeyRepo.class);
+        Mockito.when(jwtSigningKeyRepo.findUsable())
+                .thenReturn(List.of(new JwtSigningKeyRepo.SigningKeyRow("bench", new byte[32])));
+        jwtService = new JWTService(new JwtKeyRing(jwtSigningKeyRepo, null, Duration.ofDays(1)));
+        UserRepo userRepo = Mockito.mock(UserRepo.class);
+        Mockito.when(userRepo.findTokenVersion(1L)).thenReturn(Optional.of(0));
+        filter = new JwtFilter();
+        ReflectionTestUtils.setField(filter, "jwtService", jwtService);
+        ReflectionTestUtils.setField(filter, "myUserDetailsService", new MyUserDetailsService(userRepo, new SimpleMeterRegistry()));
+        token = jwtService.generateToken(new UserPrincipal(1L, "BenchUser", 0));
+    }
+
+    @Benchmark
+    public Authentication filterRequest() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/stories");
+        request.setCookies(new Cookie("jwt", token));
+        try {
+            filter.doFilter(request, new MockHttpServletResponse(), new MockFilterChain());
+            return SecurityContextHolder.getContext().getAuthentication();
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+    @Benchmark
+    public Claims parseClaims() {
+        return jwtService.parseClaims(token);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(JwtFilterBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -1,7 +1,12 @@
 package com.sinenomine.plottracker.controller;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jayway.jsonpath.JsonPath;
+import com.sinenomine.plottracker.dto.ChangePasswordRequestDto;
+import com.sinenomine.plottracker.dto.DeleteUserRequestDto;
+import com.sinenomine.plottracker.dto.StoryRequestDto;
 import com.sinenomine.plottracker.dto.UserDto;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.junit.jupiter.api.*;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
@@ -10,6 +15,7 @@ import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.boot.test.web.server.LocalServerPort;
 import org.springframework.context.annotation.Bean;
 import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.jdbc.Sql;
@@ -19,8 +25,10 @@ import org.springframework.test.web.servlet.MockMvc;
 import jakarta.servlet.http.Cookie;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
@@ -40,6 +48,12 @@ class AuthControllerIntegrationTest {
     @Autowired
     private ObjectMapper objectMapper;
 
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
     private static Cookie jwtCookie;
 
     @BeforeAll
@@ -84,6 +98,202 @@ class AuthControllerIntegrationTest {
                 .andExpect(jsonPath("$.username").value(testUsername));
     }
 
+    @Test
+    @DisplayName("Register should copy the current demo story, also after the demo story was edited")
+    void testRegisterCopiesEditedDemoStory() throws Exception {
+        long registrations = meterRegistry.timer("plottracker.registration").count();
+        register("testUser_demoCopy1");
+        awaitProvisioning("testUser_demoCopy1");
+
+        StoryRequestDto updateRequest = new StoryRequestDto();
+        updateRequest.setTitle("Edited Demo Title");
+        updateRequest.setDescription("TestDescription");
+        mockMvc.perform(put("/api/stories/{id}", 1L)
+                        .cookie(jwtCookie)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(updateRequest)))
+                .andExpect(status().isOk());
+        register("testUser_demoCopy2");
+        awaitProvisioning("testUser_demoCopy2");
+
+        assertThat(demoCopyTitle("testUser_demoCopy1")).isEqualTo("TestTitle");
+        assertThat(demoCopyTitle("testUser_demoCopy2")).isEqualTo("Edited Demo Title");
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM plot_event_tag pt " +
+                "JOIN plot_event p ON p.event_id = pt.event_id JOIN story s ON s.story_id = p.story_id " +
+                "JOIN users u ON u.user_id = s.user_id JOIN tag t ON t.tag_id = pt.tag_id " +
+                "WHERE u.username = ? AND t.story_id = s.story_id", Integer.class, "testUser_demoCopy2")).isEqualTo(1);
+        assertThat(meterRegistry.timer("plottracker.registration").count()).isEqualTo(registrations + 2);
+
+        updateRequest.setTitle("TestTitle");
+        mockMvc.perform(put("/api/stories/{id}", 1L)
+                        .cookie(jwtCookie)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(updateRequest)))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    @DisplayName("Tokens of a deleted account should be rejected although token versions are cached")
+    void testDeletedAccountTokenIsRejected() throws Exception {
+        register("testUser_deleted");
+        UserDto userDto = new UserDto();
+        userDto.setUsername("testUser_deleted");
+        userDto.setPassword("password");
+        Cookie cookie = mockMvc.perform(post("/api/auth/login")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(userDto)))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getCookie("jwt");
+        assertThat(cookie).isNotNull();
+
+        mockMvc.perform(get("/api/user").cookie(cookie))
+                .andExpect(status().isOk());
+        DeleteUserRequestDto deleteRequest = new DeleteUserRequestDto();
+        deleteRequest.setPassword("password");
+        mockMvc.perform(delete("/api/user")
+                        .cookie(cookie)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(deleteRequest)))
+                .andExpect(status().isOk());
+        mockMvc.perform(get("/api/user").cookie(cookie))
+                .andExpect(status().isUnauthorized());
+    }
+
+    @Test
+    @DisplayName("Changing the password should revoke earlier tokens and hand out a new one")
+    void testPasswordChangeRevokesTokens() throws Exception {
+        register("testUser_passwordChange");
+        UserDto userDto = new UserDto();
+        userDto.setUsername("testUser_passwordChange");
+        userDto.setPassword("password");
+        Cookie oldCookie = mockMvc.perform(post("/api/auth/login")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(userDto)))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getCookie("jwt");
+        assertThat(oldCookie).isNotNull();
+        mockMvc.perform(get("/api/stories").cookie(oldCookie))
+                .andExpect(status().isOk());
+
+        ChangePasswordRequestDto changeRequest = new ChangePasswordRequestDto();
+        changeRequest.setCurrentPassword("password");
+        changeRequest.setNewPassword("newPassword");
+        Cookie newCookie = mockMvc.perform(put("/api/user/password")
+                        .cookie(oldCookie)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(changeRequest)))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getCookie("jwt");
+        assertThat(newCookie).isNotNull();
+
+        mockMvc.perform(get("/api/stories").cookie(oldCookie))
+                .andExpect(status().isUnauthorized());
+        mockMvc.perform(get("/api/stories").cookie(newCookie))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    @DisplayName("Repeated failed logins for a username should be refused with 429 before the password is checked")
+    void testFailedLoginsAreThrottled() throws Exception {
+        register("testUser_throttled");
+        double throttled = meterRegistry.counter("plottracker.auth.login.throttled").count();
+        UserDto userDto = new UserDto();
+        userDto.setUsername("testUser_throttled");
+        userDto.setPassword("wrongPassword");
+        for (int i = 0; i < 5; i++) {
+            mockMvc.perform(post("/api/auth/login")
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .content(objectMapper.writeValueAsString(userDto)))
+                    .andExpect(status().isUnauthorized());
+        }
+
+        userDto.setPassword("password");
+        mockMvc.perform(post("/api/auth/login")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(userDto)))
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().exists("Retry-After"));
+        assertThat(meterRegistry.counter("plottracker.auth.login.throttled").count()).isEqualTo(throttled + 1);
+        assertThat(meterRegistry.get("plottracker.auth.hash").timer().count()).isPositive();
+    }
+
+    @Test
+    @DisplayName("Login should rehash a stored password whose bcrypt cost is below the calibrated one")
+    void testLoginRehashesPasswordOfLowerCost() throws Exception {
+        register("testUser_rehash");
+        jdbcTemplate.update("UPDATE users SET password = ? WHERE username = ?",
+                new BCryptPasswordEncoder(4).encode("password"), "testUser_rehash");
+        UserDto userDto = new UserDto();
+        userDto.setUsername("testUser_rehash");
+        userDto.setPassword("password");
+        mockMvc.perform(post("/api/auth/login")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(userDto)))
+                .andExpect(status().isOk());
+
+        int cost = (int) meterRegistry.get("plottracker.auth.hash.cost").gauge().value();
+        String password = jdbcTemplate.queryForObject("SELECT password FROM users WHERE username = ?",
+                String.class, "testUser_rehash");
+        assertThat(password).startsWith(String.format("$2a$%02d$", cost));
+        mockMvc.perform(post("/api/auth/login")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(userDto)))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    @DisplayName("Registration should return before the demo story is copied and report when it is there")
+    void testProvisioningStatus() throws Exception {
+        register("testUser_provisioning");
+        UserDto userDto = new UserDto();
+        userDto.setUsername("testUser_provisioning");
+        userDto.setPassword("password");
+        Cookie cookie = mockMvc.perform(post("/api/auth/login")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(userDto)))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getCookie("jwt");
+        assertThat(cookie).isNotNull();
+
+        String status = null;
+        for (int i = 0; i < 100 && !"DONE".equals(status); i++) {
+            if (i > 0)
+                Thread.sleep(100);
+            status = JsonPath.read(mockMvc.perform(get("/api/user/provisioning").cookie(cookie))
+                    .andExpect(status().isOk())
+                    .andReturn().getResponse().getContentAsString(), "$.status");
+        }
+        assertThat(status).isEqualTo("DONE");
+        mockMvc.perform(get("/api/stories").cookie(cookie))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(1));
+    }
+
+    private void awaitProvisioning(String username) throws InterruptedException {
+        String sql = "SELECT t.status FROM provisioning_task t JOIN users u ON u.user_id = t.user_id WHERE u.username = ?";
+        for (int i = 0; i < 100; i++) {
+            if ("DONE".equals(jdbcTemplate.queryForObject(sql, String.class, username)))
+                return;
+            Thread.sleep(100);
+        }
+        throw new AssertionError("Demo story of " + username + " was not copied");
+    }
+
+    private void register(String username) throws Exception {
+        UserDto userDto = new UserDto();
+        userDto.setUsername(username);
+        userDto.setPassword("password");
+        mockMvc.perform(post("/api/auth/register")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(userDto)))
+                .andExpect(status().isCreated());
+    }
+
+    private String demoCopyTitle(String username) {
+        return jdbcTemplate.queryForObject("SELECT s.title FROM story s JOIN users u ON u.user_id = s.user_id " +
+                "WHERE u.username = ?", String.class, username);
+    }
+
     @Test
     @DisplayName("Register same user again should fail with 400")
     void testRegisterDuplicate() throws Exception {
@@ -1,8 +1,15 @@
 package com.sinenomine.plottracker.controller;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jayway.jsonpath.JsonPath;
 import com.sinenomine.plottracker.dto.PlotEventRequestDto;
 import com.sinenomine.plottracker.dto.UserDto;
+import com.sinenomine.plottracker.model.Users;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.PersistenceContext;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.junit.jupiter.api.*;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
@@ -21,6 +28,9 @@ import org.springframework.transaction.annotation.Transactional;
 
 import jakarta.servlet.http.Cookie;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 
 import static net.javacrumbs.jsonunit.spring.JsonUnitResultMatchers.json;
@@ -44,6 +54,12 @@ class PlotEventControllerIntegrationTest {
 
     @Autowired
     private ObjectMapper objectMapper;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @PersistenceContext
+    private EntityManager entityManager;
     private Cookie jwtCookie;
     private Long eventId = 1L;
     private Long tagId = 1L;
@@ -207,6 +223,98 @@ class PlotEventControllerIntegrationTest {
                           }"""));
     }
 
+    @Test
+    @DisplayName("Inserting at the same spot past the position gap should renumber the story and keep the order")
+    @Transactional
+    @Rollback
+    void testRepeatedInsertsAtSameSpotKeepStoryOrder() throws Exception {
+        Long last = addPlotEvent("Last", eventId);
+        // Every insert right after event 1 halves the gap in front of the previous one; 2^16 runs out after 16
+        List<Long> inserted = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            inserted.add(addPlotEvent("Inserted " + i, eventId));
+
+        List<Long> expected = new ArrayList<>();
+        expected.add(eventId);
+        List<Long> newestFirst = new ArrayList<>(inserted);
+        Collections.reverse(newestFirst);
+        expected.addAll(newestFirst);
+        expected.add(last);
+        assertStoryOrder(expected);
+
+        mockMvc.perform(get("/api/plotEvents/{eventId}", inserted.get(0))
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.prevEventId").value(inserted.get(1)));
+    }
+
+    @Test
+    @DisplayName("Moving a PlotEvent to the start, into the middle and out of the plot should update the story order")
+    @Transactional
+    @Rollback
+    void testMovePlotEvent() throws Exception {
+        Long second = addPlotEvent("Second", eventId);
+        Long third = addPlotEvent("Third", second);
+        assertStoryOrder(List.of(eventId, second, third));
+
+        movePlotEvent(third, null, true);
+        assertStoryOrder(List.of(third, eventId, second));
+
+        movePlotEvent(eventId, second, true);
+        assertStoryOrder(List.of(third, second, eventId));
+
+        movePlotEvent(second, null, false);
+        assertStoryOrder(List.of(third, eventId));
+    }
+
+    private Long addPlotEvent(String title, Long prevEventId) throws Exception {
+        PlotEventRequestDto request = new PlotEventRequestDto();
+        request.setEventType("undated");
+        request.setTitle(title);
+        request.setInPlot(true);
+        request.setPrevEventId(prevEventId);
+        request.setTags(Set.of());
+
+        var result = mockMvc.perform(post("/api/stories/{id}/plotevents", 1L)
+                        .cookie(jwtCookie)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isCreated())
+                .andReturn();
+        return ((Number) JsonPath.read(result.getResponse().getContentAsString(), "$.eventId")).longValue();
+    }
+
+    private void movePlotEvent(Long id, Long prevEventId, boolean inPlot) throws Exception {
+        PlotEventRequestDto request = new PlotEventRequestDto();
+        request.setEventType("undated");
+        request.setTitle("Moved");
+        request.setInPlot(inPlot);
+        request.setPrevEventId(prevEventId);
+        request.setTags(Set.of());
+
+        mockMvc.perform(put("/api/plotEvents/{eventId}", id)
+                        .cookie(jwtCookie)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isOk());
+    }
+
+    // The story order and every event's prevEventId, which has to name the event listed before it
+    private void assertStoryOrder(List<Long> expected) throws Exception {
+        String json = mockMvc.perform(get("/api/stories/{id}/plotevents", 1L)
+                        .param("sortBy", "story")
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        List<Number> eventIds = JsonPath.read(json, "$[*].eventId");
+        List<Number> prevEventIds = JsonPath.read(json, "$[*].prevEventId");
+        assertThat(eventIds.stream().map(Number::longValue).toList()).isEqualTo(expected);
+        for (int i = 0; i < expected.size(); i++) {
+            Long prev = prevEventIds.get(i) == null ? null : prevEventIds.get(i).longValue();
+            assertThat(prev).isEqualTo(i == 0 ? null : expected.get(i - 1));
+        }
+    }
+
     @Test
     @DisplayName("DELETE a PlotEvent should return 200 OK with success message")
     @Transactional
@@ -217,4 +325,57 @@ class PlotEventControllerIntegrationTest {
                 .andExpect(status().isOk())
                 .andExpect(content().string("Plot event deleted successfully"));
     }
+
+    @Test
+    @DisplayName("Reading, updating and deleting a PlotEvent should check ownership without loading the user")
+    @Transactional
+    @Rollback
+    void testPlotEventOwnershipDoesNotLoadUser() throws Exception {
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        entityManager.clear();
+        statistics.clear();
+
+        mockMvc.perform(get("/api/plotEvents/{eventId}", eventId)
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk());
+        entityManager.clear();
+        PlotEventRequestDto updateDto = new PlotEventRequestDto();
+        updateDto.setEventType("dated");
+        updateDto.setTitle("Owner Check Title");
+        updateDto.setDate("2025.01.01");
+        updateDto.setInPlot(true);
+        updateDto.setTags(Set.of(2L));
+        mockMvc.perform(put("/api/plotEvents/{eventId}", eventId)
+                        .cookie(jwtCookie)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(updateDto)))
+                .andExpect(status().isOk());
+        entityManager.flush();
+        entityManager.clear();
+        mockMvc.perform(delete("/api/plotEvents/{eventId}", eventId)
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk());
+        entityManager.flush();
+
+        assertThat(statistics.getEntityStatistics(Users.class.getName()).getLoadCount()).isZero();
+    }
+
+    @Test
+    @DisplayName("GET a PlotEvent should only read the event, its tags and its predecessor once ownership is cached")
+    @Transactional
+    @Rollback
+    void testGetPlotEventStatementCount() throws Exception {
+        mockMvc.perform(get("/api/plotEvents/{eventId}", eventId)
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk());
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        entityManager.clear();
+        statistics.clear();
+
+        mockMvc.perform(get("/api/plotEvents/{eventId}", eventId)
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk());
+        // The event joined with its tags and their types, then the previous event in the story order
+        assertThat(statistics.getPrepareStatementCount()).isLessThanOrEqualTo(2);
+    }
 }
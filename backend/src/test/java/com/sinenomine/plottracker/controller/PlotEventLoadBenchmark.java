@@ -0,0 +1,160 @@
+package com.sinenomine.plottracker.controller;
+
+import com.sinenomine.plottracker.PlottrackerApplication;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import javax.sql.DataSource;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput and latency of the plot-event endpoints with Tomcat on platform threads and then on virtual threads,
+ * against the test database with the test profile. Each run starts the application afresh, loads test-data.sql plus
+ * {@value #EVENTS} more plot events, and has {@value #CLIENTS} clients alternate between the story's event list and
+ * single events for {@value #SECONDS} seconds. Virtual threads need Java 21 (the java21 profile); not part of the test
+ * run, start it with {@link #main} from the IDE, or from the command line with the test classpath:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) com.sinenomine.plottracker.controller.PlotEventLoadBenchmark
+ * </pre>
+ */
+public class PlotEventLoadBenchmark {
+
+    private static final int EVENTS = 200;
+    private static final int CLIENTS = 200;
+    private static final int SECONDS = 30;
+    private static final int WARMUP_SECONDS = 5;
+
+    private record Result(long requests, long errors, long[] latenciesMicros, Duration elapsed) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (Runtime.version().feature() < 21)
+            System.out.println("Running on Java " + Runtime.version().feature()
+                    + ": virtual threads need Java 21, both runs will use platform threads");
+
+        Result platform = run(false);
+        Result virtual = run(true);
+        System.out.println();
+        report("platform threads", platform);
+        report("virtual threads", virtual);
+    }
+
+    private static Result run(boolean virtualThreads) throws Exception {
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(PlottrackerApplication.class)
+                .profiles("test")
+                .properties("server.port=0",
+                        "spring.threads.virtual.enabled=" + virtualThreads,
+                        "spring.jpa.show-sql=false",
+                        "plottracker.auth.max-failures-per-address=1000000")
+                .run()) {
+            loadData(context.getBean(DataSource.class));
+            int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+            HttpClient client = HttpClient.newBuilder()
+                    .executor(Executors.newFixedThreadPool(8))
+                    .connectTimeout(Duration.ofSeconds(5))
+                    .build();
+            String baseUrl = "http://localhost:" + port;
+            String cookie = login(client, baseUrl);
+
+            drive(client, baseUrl, cookie, WARMUP_SECONDS);
+            return drive(client, baseUrl, cookie, SECONDS);
+        }
+    }
+
+    private static void loadData(DataSource dataSource) {
+        new ResourceDatabasePopulator(new ClassPathResource("test-data.sql")).execute(dataSource);
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        List<Object[]> events = new ArrayList<>();
+        for (int i = 0; i < EVENTS; i++)
+            events.add(new Object[]{100L + i, "Content " + i, "Description " + i, "Event " + i, (i + 2) * 65536L});
+        jdbcTemplate.batchUpdate("""
+                INSERT INTO plot_event(event_id, content, date, description, event_type, is_in_plot, title, position, story_id)
+                VALUES (?, ?, '1500.01.01', ?, 'dated', true, ?, ?, 1)""", events);
+    }
+
+    private static String login(HttpClient client, String baseUrl) throws Exception {
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(baseUrl + "/api/auth/login"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString("{\"username\":\"TestUser1\",\"password\":\"password\"}"))
+                .build(), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200)
+            throw new IllegalStateException("Login failed with " + response.statusCode() + ": " + response.body());
+        return response.headers().allValues("Set-Cookie").stream()
+                .filter(c -> c.startsWith("jwt="))
+                .map(c -> c.substring(0, c.indexOf(';')))
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("No jwt cookie in the login response"));
+    }
+
+    // Each client waits for its response before sending the next request, so concurrency stays at CLIENTS
+    private static Result drive(HttpClient client, String baseUrl, String cookie, int seconds) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ConcurrentLinkedQueue<long[]> latencies = new ConcurrentLinkedQueue<>();
+        AtomicInteger errors = new AtomicInteger();
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        long start = System.nanoTime();
+        List<Future<?>> running = new ArrayList<>();
+        for (int c = 0; c < CLIENTS; c++) {
+            int clientNumber = c;
+            running.add(clients.submit(() -> {
+                List<Long> own = new ArrayList<>();
+                for (int i = 0; System.nanoTime() < deadline; i++) {
+                    String path = (i + clientNumber) % 2 == 0
+                            ? "/api/stories/1/plotevents?sortBy=story"
+                            : "/api/plotEvents/" + (100 + (i * 31 + clientNumber) % EVENTS);
+                    HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + path))
+                            .header("Cookie", cookie)
+                            .timeout(Duration.ofSeconds(30))
+                            .GET()
+                            .build();
+                    long sent = System.nanoTime();
+                    try {
+                        HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                        if (response.statusCode() != 200)
+                            errors.incrementAndGet();
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    }
+                    own.add((System.nanoTime() - sent) / 1000);
+                }
+                latencies.add(own.stream().mapToLong(Long::longValue).toArray());
+                return null;
+            }));
+        }
+        for (Future<?> future : running)
+            future.get();
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+        clients.shutdown();
+
+        long[] all = latencies.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+        return new Result(all.length, errors.get(), all, elapsed);
+    }
+
+    private static void report(String name, Result result) {
+        double seconds = result.elapsed().toNanos() / 1e9;
+        System.out.printf("%-17s %8.0f req/s  p50 %6.1f ms  p95 %6.1f ms  p99 %6.1f ms  errors %d of %d%n",
+                name, result.requests() / seconds,
+                percentile(result.latenciesMicros(), 0.50), percentile(result.latenciesMicros(), 0.95),
+                percentile(result.latenciesMicros(), 0.99), result.errors(), result.requests());
+    }
+
+    private static double percentile(long[] sortedMicros, double p) {
+        if (sortedMicros.length == 0)
+            return 0;
+        return sortedMicros[(int) Math.min(sortedMicros.length - 1, Math.floor(p * sortedMicros.length))] / 1000.0;
+    }
+}
@@ -1,11 +1,18 @@
 package com.sinenomine.plottracker.controller;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jayway.jsonpath.JsonPath;
 import com.sinenomine.plottracker.dto.StoryRequestDto;
 import com.sinenomine.plottracker.dto.PlotEventRequestDto;
 import com.sinenomine.plottracker.dto.UserDto;
 import com.sinenomine.plottracker.model.Story;
+import com.sinenomine.plottracker.model.Users;
 import com.sinenomine.plottracker.repo.StoryRepo;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.PersistenceContext;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.junit.jupiter.api.*;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
@@ -14,6 +21,7 @@ import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.boot.test.web.server.LocalServerPort;
 import org.springframework.context.annotation.Bean;
 import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.jdbc.Sql;
@@ -24,10 +32,15 @@ import org.springframework.test.web.servlet.MockMvc;
 
 import jakarta.servlet.http.Cookie;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static net.javacrumbs.jsonunit.spring.JsonUnitResultMatchers.json;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
@@ -50,6 +63,15 @@ class StoryControllerIntegrationTest {
 
     @Autowired
     private StoryRepo storyRepo;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @PersistenceContext
+    private EntityManager entityManager;
     private Cookie jwtCookie;
     private Long storyId = 1L;
 
@@ -160,6 +182,69 @@ class StoryControllerIntegrationTest {
                         }"""));
     }
 
+    @Test
+    @DisplayName("Story details, update, export and delete should check ownership without loading the user")
+    @Transactional
+    @Rollback
+    void testStoryOwnershipDoesNotLoadUser() throws Exception {
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        entityManager.clear();
+        statistics.clear();
+
+        mockMvc.perform(get("/api/stories/{id}", storyId)
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk());
+        entityManager.clear();
+        StoryRequestDto updateRequest = new StoryRequestDto();
+        updateRequest.setTitle("Owner Check Title");
+        mockMvc.perform(put("/api/stories/{id}", storyId)
+                        .cookie(jwtCookie)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(updateRequest)))
+                .andExpect(status().isOk());
+        entityManager.clear();
+        var mvcResult = mockMvc.perform(get("/api/stories/{id}/export", storyId)
+                        .cookie(jwtCookie))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isOk());
+        mockMvc.perform(delete("/api/stories/{id}", storyId)
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk());
+
+        assertThat(statistics.getEntityStatistics(Users.class.getName()).getLoadCount()).isZero();
+    }
+
+    @Test
+    @DisplayName("Duplicate a story should return 201 Created with a copy of its tag types, tags, plot events and event tags")
+    @Transactional
+    @Rollback
+    void testDuplicateStory() throws Exception {
+        var mvcResult = mockMvc.perform(post("/api/stories/{id}/duplicate", storyId)
+                        .cookie(jwtCookie))
+                .andExpect(status().isCreated())
+                .andExpect(jsonPath("$.title").value("TestTitle"))
+                .andExpect(jsonPath("$.description").value("TestDescription"))
+                .andExpect(jsonPath("$.user").doesNotExist())
+                .andReturn();
+
+        Story duplicatedStory = objectMapper.readValue(mvcResult.getResponse().getContentAsString(), Story.class);
+        Long duplicatedStoryId = duplicatedStory.getStoryId();
+        assertThat(duplicatedStoryId).isNotEqualTo(storyId);
+
+        assertThat(jdbcTemplate.queryForList("SELECT name FROM tag_type WHERE story_id = ? ORDER BY tag_type_id",
+                String.class, duplicatedStoryId)).containsExactly("TagType1", "TagType2");
+        assertThat(jdbcTemplate.queryForList("SELECT tt.name FROM tag t JOIN tag_type tt ON tt.tag_type_id = t.tag_type_id " +
+                "WHERE t.story_id = ? AND tt.story_id = ?", String.class, duplicatedStoryId, duplicatedStoryId))
+                .containsExactly("TagType1", "TagType1");
+        assertThat(jdbcTemplate.queryForList("SELECT t.tag_name FROM plot_event p " +
+                "JOIN plot_event_tag pt ON pt.event_id = p.event_id JOIN tag t ON t.tag_id = pt.tag_id " +
+                "WHERE p.story_id = ? AND t.story_id = ?", String.class, duplicatedStoryId, duplicatedStoryId))
+                .containsExactly("Tag11");
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM clone_id_map", Integer.class)).isZero();
+    }
+
     @Test
     @DisplayName("GET all plot events for a story, sorted by date should return 200 OK with array of plotEventResponseDto")
     void testGetPlotEvents() throws Exception {
@@ -207,7 +292,7 @@ class StoryControllerIntegrationTest {
                             "content": "TestContent",
                             "isInPlot": true,
                             "memoryRefId": null,
-                            "prevEventId": null,
+                            "prevEventId": "${json-unit.any-number}",
                             "tags": [
                               {
                                 "tagId": 1,
@@ -221,11 +306,11 @@ class StoryControllerIntegrationTest {
                           {
                             "inPlot": true,
                             "eventType": "dated",
-                            "eventId": 3,
-                            "title": "Test Event 2",
-                            "date": "2025-05-01",
-                            "description": "This is a test event",
-                            "content": "Some content",
+                            "eventId": "${json-unit.any-number}",
+                            "title": "Test Event 3",
+                            "date": "2025-03-01",
+                            "description": "This is a test event 3",
+                            "content": "Some content 3",
                             "isInPlot": true,
                             "memoryRefId": null,
                             "prevEventId": null,
@@ -234,19 +319,228 @@ class StoryControllerIntegrationTest {
                           {
                             "inPlot": true,
                             "eventType": "dated",
-                            "eventId": 4,
-                            "title": "Test Event 3",
-                            "date": "2025-03-01",
-                            "description": "This is a test event 3",
-                            "content": "Some content 3",
+                            "eventId": "${json-unit.any-number}",
+                            "title": "Test Event 2",
+                            "date": "2025-05-01",
+                            "description": "This is a test event",
+                            "content": "Some content",
                             "isInPlot": true,
                             "memoryRefId": null,
-                            "prevEventId": null,
+                            "prevEventId": "${json-unit.any-number}",
                             "tags": []
                           }
                         ]"""));
     }
 
+    @Test
+    @DisplayName("Sorting by date should follow the story's dateFormat, padding short dates and ignoring segment widths")
+    @Transactional
+    @Rollback
+    void testGetPlotEventsInDateOrder() throws Exception {
+        Long formattedStoryId = createStory("9999.12.31");
+        // Added out of order; "1500" is the start of year 1500 and "2026.1.1" is later than "2025.05.01"
+        for (String date : List.of("2026.1.1", "1500.01.01", "2025.05.01", "1500", "1499.12.31"))
+            addDatedEvent(formattedStoryId, date);
+
+        mockMvc.perform(get("/api/stories/{id}/plotevents", formattedStoryId)
+                        .param("sortBy", "date")
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].date").value(
+                        contains("1499.12.31", "1500", "1500.01.01", "2025.05.01", "2026.1.1")));
+
+        // Without a dateFormat every segment after the year counts up to 99, whatever its width
+        Long plainStoryId = createStory(null);
+        for (String date : List.of("2026-1-1", "2025-05-01", "1500", "1499-12-31"))
+            addDatedEvent(plainStoryId, date);
+
+        mockMvc.perform(get("/api/stories/{id}/plotevents", plainStoryId)
+                        .param("sortBy", "date")
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].date").value(
+                        contains("1499-12-31", "1500", "2025-05-01", "2026-1-1")));
+    }
+
+    @Test
+    @DisplayName("Sorting by date should restrict the events to from/to and apply the limit")
+    @Transactional
+    @Rollback
+    void testGetPlotEventsInDateRange() throws Exception {
+        Long formattedStoryId = createStory("9999.12.31");
+        for (String date : List.of("1499.12.31", "1500.01.01", "1500.06.15", "1501.01.01", "1502.03.04"))
+            addDatedEvent(formattedStoryId, date);
+
+        mockMvc.perform(get("/api/stories/{id}/plotevents", formattedStoryId)
+                        .param("sortBy", "date")
+                        .param("from", "1500")
+                        .param("to", "1501.01.01")
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].date").value(
+                        contains("1500.01.01", "1500.06.15", "1501.01.01")));
+
+        mockMvc.perform(get("/api/stories/{id}/plotevents", formattedStoryId)
+                        .param("sortBy", "date")
+                        .param("from", "1500.06")
+                        .param("limit", "2")
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].date").value(
+                        contains("1500.06.15", "1501.01.01")));
+    }
+
+    @Test
+    @DisplayName("A limited date query should give each event its predecessor in story order, as the full list does")
+    void testGetPlotEventsInDateRangeKeepsPrevEventIds() throws Exception {
+        String storyOrder = mockMvc.perform(get("/api/stories/{id}/plotevents", storyId)
+                        .param("sortBy", "story")
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        List<Map<String, Object>> inPlot = JsonPath.read(storyOrder, "$[*]");
+        Map<Object, Object> prevEventIds = new HashMap<>();
+        for (Map<String, Object> event : inPlot)
+            prevEventIds.put(event.get("eventId"), event.get("prevEventId"));
+
+        String page = mockMvc.perform(get("/api/stories/{id}/plotevents", storyId)
+                        .param("sortBy", "date")
+                        .param("limit", "2")
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(2))
+                .andReturn().getResponse().getContentAsString();
+        List<Map<String, Object>> events = JsonPath.read(page, "$[*]");
+        for (Map<String, Object> event : events)
+            assertThat(event.get("prevEventId")).isEqualTo(prevEventIds.get(event.get("eventId")));
+    }
+
+    @Test
+    @DisplayName("Sorting by date should answer 400 Bad Request for a bound that does not fit the dateFormat")
+    @Transactional
+    @Rollback
+    void testGetPlotEventsInDateRangeRejectsInvalidBounds() throws Exception {
+        Long formattedStoryId = createStory("9999.12.31");
+        for (String bound : List.of("not a date", "1500.13.01", "1500.01.01.12")) {
+            mockMvc.perform(get("/api/stories/{id}/plotevents", formattedStoryId)
+                            .param("sortBy", "date")
+                            .param("from", bound)
+                            .cookie(jwtCookie))
+                    .andExpect(status().isBadRequest())
+                    .andExpect(content().string("Invalid date: " + bound));
+        }
+    }
+
+    private Long createStory(String dateFormat) throws Exception {
+        StoryRequestDto request = new StoryRequestDto();
+        request.setTitle("Dated Story");
+        request.setDateFormat(dateFormat);
+        var result = mockMvc.perform(post("/api/stories")
+                        .cookie(jwtCookie)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isCreated())
+                .andReturn();
+        return objectMapper.readValue(result.getResponse().getContentAsString(), Story.class).getStoryId();
+    }
+
+    private void addDatedEvent(Long id, String date) throws Exception {
+        PlotEventRequestDto request = new PlotEventRequestDto();
+        request.setEventType("dated");
+        request.setTitle("Event on " + date);
+        request.setDate(date);
+        request.setInPlot(false);
+        request.setTags(Set.of());
+        mockMvc.perform(post("/api/stories/{id}/plotevents", id)
+                        .cookie(jwtCookie)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isCreated());
+    }
+
+    @Test
+    @DisplayName("GET all plot events should run the same number of SQL statements however many events and tags the story has")
+    @Transactional
+    @Rollback
+    void testGetPlotEventsStatementCount() throws Exception {
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        long statementsForSmallStory = countPlotEventListStatements(statistics);
+
+        for (int i = 0; i < 5; i++) {
+            PlotEventRequestDto plotEventRequest = new PlotEventRequestDto();
+            plotEventRequest.setEventType("dated");
+            plotEventRequest.setTitle("Statement Count Event " + i);
+            plotEventRequest.setDate("1500.01.0" + (i + 2));
+            plotEventRequest.setInPlot(true);
+            plotEventRequest.setTags(Set.of(1L, 2L));
+
+            mockMvc.perform(post("/api/stories/{id}/plotevents", storyId)
+                            .cookie(jwtCookie)
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .content(objectMapper.writeValueAsString(plotEventRequest)))
+                    .andExpect(status().isCreated());
+        }
+        entityManager.flush();
+
+        long statementsForLargeStory = countPlotEventListStatements(statistics);
+        assertThat(statementsForLargeStory).isEqualTo(statementsForSmallStory);
+    }
+
+    private long countPlotEventListStatements(Statistics statistics) throws Exception {
+        entityManager.clear();
+        statistics.clear();
+        mockMvc.perform(get("/api/stories/{id}/plotevents", storyId)
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk());
+        return statistics.getPrepareStatementCount();
+    }
+
+    @Test
+    @DisplayName("Story details and plot events should answer If-None-Match with 304 until the story changes")
+    @Transactional
+    @Rollback
+    void testGetPlotEventsIsConditional() throws Exception {
+        String eTag = mockMvc.perform(get("/api/stories/{id}/plotevents", storyId)
+                        .param("sortBy", "story")
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk())
+                .andExpect(header().exists("ETag"))
+                .andExpect(header().string("Cache-Control", "no-cache, private"))
+                .andReturn().getResponse().getHeader("ETag");
+
+        mockMvc.perform(get("/api/stories/{id}/plotevents", storyId)
+                        .param("sortBy", "story")
+                        .header("If-None-Match", eTag)
+                        .cookie(jwtCookie))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+        mockMvc.perform(get("/api/stories/{id}", storyId)
+                        .header("If-None-Match", eTag)
+                        .cookie(jwtCookie))
+                .andExpect(status().isNotModified());
+
+        PlotEventRequestDto plotEventRequest = new PlotEventRequestDto();
+        plotEventRequest.setEventType("dated");
+        plotEventRequest.setTitle("Conditional Event");
+        plotEventRequest.setDate("2025-05-01");
+        plotEventRequest.setInPlot(true);
+        plotEventRequest.setTags(Set.of());
+        mockMvc.perform(post("/api/stories/{id}/plotevents", storyId)
+                        .cookie(jwtCookie)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(plotEventRequest)))
+                .andExpect(status().isCreated());
+
+        String newETag = mockMvc.perform(get("/api/stories/{id}/plotevents", storyId)
+                        .param("sortBy", "story")
+                        .header("If-None-Match", eTag)
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[?(@.title == 'Conditional Event')]").exists())
+                .andReturn().getResponse().getHeader("ETag");
+        assertThat(newETag).isNotEqualTo(eTag);
+    }
+
     @Test
     @DisplayName("Add a new plot event to a story should return 201 Created with PlotEventResponseDto")
     @Transactional
@@ -275,6 +569,19 @@ class StoryControllerIntegrationTest {
                 .andExpect(jsonPath("$.isInPlot").value(true));
     }
 
+    @Test
+    @DisplayName("Export plot events should run asynchronously and return the DOCX file")
+    void testExportPlotEvents() throws Exception {
+        var mvcResult = mockMvc.perform(get("/api/stories/{id}/export", storyId)
+                        .cookie(jwtCookie))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Disposition", containsString(".docx")));
+    }
+
     @Test
     @DisplayName("Delete a story should return 200 OK")
     @Transactional
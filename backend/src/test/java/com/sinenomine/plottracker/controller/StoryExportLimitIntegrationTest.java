@@ -0,0 +1,106 @@
+package com.sinenomine.plottracker.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sinenomine.plottracker.dto.UserDto;
+import jakarta.servlet.http.Cookie;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.task.TaskExecutionAutoConfiguration;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.jdbc.Sql;
+import org.springframework.test.context.jdbc.Sql.ExecutionPhase;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+/**
+ * Exports on a task executor with room for a single export and no queue, so that the test can fill it up.
+ */
+@SpringBootTest(properties = {
+        "spring.task.execution.pool.core-size=1",
+        "spring.task.execution.pool.max-size=1",
+        "spring.task.execution.pool.queue-capacity=0"
+})
+@AutoConfigureMockMvc
+@ActiveProfiles("test")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@Sql(value = "/test-data.sql", executionPhase = ExecutionPhase.BEFORE_TEST_CLASS)
+class StoryExportLimitIntegrationTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    @Qualifier(TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME)
+    private ThreadPoolTaskExecutor taskExecutor;
+
+    private Cookie jwtCookie;
+
+    @BeforeAll
+    void beforeAllLogin() throws Exception {
+        UserDto userDto = new UserDto();
+        userDto.setUsername("TestUser1");
+        userDto.setPassword("password");
+
+        var result = mockMvc.perform(post("/api/auth/login")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(userDto)))
+                .andExpect(status().isOk())
+                .andExpect(cookie().exists("jwt"))
+                .andReturn();
+        jwtCookie = result.getResponse().getCookie("jwt");
+        assertThat(jwtCookie).isNotNull();
+    }
+
+    @Test
+    @DisplayName("Export should return 429 Too Many Requests while the task executor is full, and work again after")
+    void testExportIsRejectedWhileExecutorIsFull() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        taskExecutor.execute(() -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        try {
+            assertThat(running.await(5, TimeUnit.SECONDS)).isTrue();
+            mockMvc.perform(get("/api/stories/{id}/export", 1L)
+                            .cookie(jwtCookie))
+                    .andExpect(status().isTooManyRequests())
+                    .andExpect(header().string("Retry-After", "1"));
+        } finally {
+            release.countDown();
+        }
+
+        // The pool thread takes a moment to be back for new work after the blocking task has ended
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        MvcResult mvcResult = mockMvc.perform(get("/api/stories/{id}/export", 1L).cookie(jwtCookie)).andReturn();
+        while (mvcResult.getResponse().getStatus() == HttpStatus.TOO_MANY_REQUESTS.value() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+            mvcResult = mockMvc.perform(get("/api/stories/{id}/export", 1L).cookie(jwtCookie)).andReturn();
+        }
+        assertThat(mvcResult.getRequest().isAsyncStarted()).isTrue();
+        mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Disposition", containsString(".docx")));
+    }
+}
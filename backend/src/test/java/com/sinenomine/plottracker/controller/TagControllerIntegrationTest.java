@@ -1,8 +1,15 @@
 package com.sinenomine.plottracker.controller;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jayway.jsonpath.JsonPath;
 import com.sinenomine.plottracker.dto.*;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.PersistenceContext;
 import jakarta.servlet.http.Cookie;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.junit.jupiter.api.*;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
@@ -11,6 +18,8 @@ import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.boot.test.web.server.LocalServerPort;
 import org.springframework.context.annotation.Bean;
 import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.jdbc.Sql;
@@ -18,9 +27,16 @@ import org.springframework.test.context.jdbc.Sql.ExecutionPhase;
 import org.springframework.test.annotation.Rollback;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 
 import static net.javacrumbs.jsonunit.spring.JsonUnitResultMatchers.json;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.Matchers.containsString;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
@@ -40,6 +56,18 @@ class TagControllerIntegrationTest {
     @Autowired
     private ObjectMapper objectMapper;
 
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
     private Cookie jwtCookie;
     private final Long storyId = 1L;
     private Long tagTypeId = 1L;
@@ -210,6 +238,44 @@ class TagControllerIntegrationTest {
                          ]"""));
     }
 
+    @Test
+    @DisplayName("Tags and tag types should answer If-None-Match with 304 until a tag type is added")
+    @Transactional
+    @Rollback
+    void testGetTagTypesIsConditional() throws Exception {
+        String eTag = mockMvc.perform(get("/api/stories/{storyId}/tagtypes", storyId)
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk())
+                .andExpect(header().exists("ETag"))
+                .andReturn().getResponse().getHeader("ETag");
+        mockMvc.perform(get("/api/stories/{storyId}/tagtypes", storyId)
+                        .header("If-None-Match", eTag)
+                        .cookie(jwtCookie))
+                .andExpect(status().isNotModified());
+        mockMvc.perform(get("/api/stories/{storyId}/tags", storyId)
+                        .header("If-None-Match", eTag)
+                        .cookie(jwtCookie))
+                .andExpect(status().isNotModified());
+
+        TagTypeRequestDto request = new TagTypeRequestDto();
+        request.setName("ConditionalTagType");
+        mockMvc.perform(post("/api/stories/{storyId}/tagtypes", storyId)
+                        .cookie(jwtCookie)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isCreated());
+
+        mockMvc.perform(get("/api/stories/{storyId}/tagtypes", storyId)
+                        .header("If-None-Match", eTag)
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[?(@.name == 'ConditionalTagType')]").exists());
+        mockMvc.perform(get("/api/stories/{storyId}/tags", storyId)
+                        .header("If-None-Match", eTag)
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk());
+    }
+
     @Test
     @DisplayName("Get single TagType should return 200 OK")
     void testGetSingleTagType() throws Exception {
@@ -255,4 +321,231 @@ class TagControllerIntegrationTest {
                 .andExpect(status().isOk())
                 .andExpect(content().string("TagType deleted successfully"));
     }
+
+    @Test
+    @DisplayName("Character images should be stored once per content, outside the characters row")
+    @Transactional
+    @Rollback
+    void testCharacterImagesAreStoredOncePerContent() throws Exception {
+        Long characterTagTypeId = createCharacterTagType();
+
+        byte[] png = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n', 1, 2, 3};
+        Long firstTagId = createCharacterTag("Character1", characterTagTypeId);
+        Long secondTagId = createCharacterTag("Character2", characterTagTypeId);
+        for (Long characterTagId : new Long[]{firstTagId, secondTagId}) {
+            mockMvc.perform(multipart("/api/stories/{storyId}/tags/character/{tagId}/image", storyId, characterTagId)
+                            .file(new MockMultipartFile("file", "image.png", MediaType.IMAGE_PNG_VALUE, png))
+                            .cookie(jwtCookie))
+                    .andExpect(status().isOk());
+        }
+
+        mockMvc.perform(get("/api/stories/{storyId}/tags/character/{tagId}/image", storyId, secondTagId)
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.IMAGE_PNG))
+                .andExpect(content().bytes(png));
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM character_image i JOIN characters c ON c.image_hash = i.image_hash " +
+                "WHERE c.tag_id IN (?, ?)", Integer.class, firstTagId, secondTagId)).isEqualTo(2);
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(DISTINCT c.image_hash) FROM characters c WHERE c.tag_id IN (?, ?)",
+                Integer.class, firstTagId, secondTagId)).isEqualTo(1);
+        assertThat(jdbcTemplate.queryForObject("SELECT i.ref_count FROM character_image i " +
+                "JOIN characters c ON c.image_hash = i.image_hash WHERE c.tag_id = ?", Integer.class, firstTagId)).isEqualTo(2);
+
+        mockMvc.perform(delete("/api/stories/{storyId}/tags/{tagId}", storyId, firstTagId)
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk());
+        mockMvc.perform(delete("/api/stories/{storyId}/tags/{tagId}", storyId, secondTagId)
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk());
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM character_image", Integer.class)).isZero();
+    }
+
+    @Test
+    @DisplayName("Character images should be served with an ETag, answer If-None-Match with 304 and honour Range")
+    @Transactional
+    @Rollback
+    void testCharacterImageCaching() throws Exception {
+        Long characterTagId = createCharacterTag("Character1", createCharacterTagType());
+        byte[] png = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n', 1, 2, 3};
+        mockMvc.perform(multipart("/api/stories/{storyId}/tags/character/{tagId}/image", storyId, characterTagId)
+                        .file(new MockMultipartFile("file", "image.png", MediaType.IMAGE_PNG_VALUE, png))
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk());
+
+        var characterResult = mockMvc.perform(get("/api/stories/{storyId}/tags/character/{tagId}", storyId, characterTagId)
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.image_hash").isString())
+                .andReturn();
+        String imageHash = JsonPath.read(characterResult.getResponse().getContentAsString(), "$.image_hash");
+
+        mockMvc.perform(get("/api/stories/{storyId}/tags/character/{tagId}/image", storyId, characterTagId)
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"" + imageHash + "\""))
+                .andExpect(header().string("Cache-Control", "no-cache, private"));
+        mockMvc.perform(get("/api/stories/{storyId}/tags/character/{tagId}/image", storyId, characterTagId)
+                        .header("If-None-Match", "\"" + imageHash + "\"")
+                        .cookie(jwtCookie))
+                .andExpect(status().isNotModified())
+                .andExpect(content().bytes(new byte[0]));
+        mockMvc.perform(get("/api/stories/{storyId}/tags/character/{tagId}/image/{imageHash}", storyId, characterTagId, imageHash)
+                        .param("size", "original")
+                        .header("Range", "bytes=1-3")
+                        .cookie(jwtCookie))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string("Cache-Control", containsString("max-age=31536000")))
+                .andExpect(header().string("Cache-Control", containsString("immutable")))
+                .andExpect(content().bytes(new byte[]{'P', 'N', 'G'}));
+        mockMvc.perform(get("/api/stories/{storyId}/tags/character/{tagId}/image/{imageHash}", storyId, characterTagId, "0".repeat(64))
+                        .cookie(jwtCookie))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    @DisplayName("Character images should be served scaled down by default and as uploaded only on request")
+    @Transactional
+    @Rollback
+    void testCharacterImageDerivatives() throws Exception {
+        Long characterTagId = createCharacterTag("Character1", createCharacterTagType());
+        BufferedImage portrait = new BufferedImage(600, 300, BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream original = new ByteArrayOutputStream();
+        ImageIO.write(portrait, "png", original);
+        mockMvc.perform(multipart("/api/stories/{storyId}/tags/character/{tagId}/image", storyId, characterTagId)
+                        .file(new MockMultipartFile("file", "image.png", MediaType.IMAGE_PNG_VALUE, original.toByteArray()))
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk());
+
+        // The copies are made in the background; the original is served until they exist
+        MvcResult thumbnail = null;
+        for (int attempt = 0; attempt < 50; attempt++) {
+            thumbnail = mockMvc.perform(get("/api/stories/{storyId}/tags/character/{tagId}/image", storyId, characterTagId)
+                            .param("size", "64")
+                            .cookie(jwtCookie))
+                    .andExpect(status().isOk())
+                    .andReturn();
+            if (MediaType.IMAGE_JPEG_VALUE.equals(thumbnail.getResponse().getContentType()))
+                break;
+            Thread.sleep(100);
+        }
+        assertThat(thumbnail.getResponse().getContentType()).isEqualTo(MediaType.IMAGE_JPEG_VALUE);
+        assertThat(thumbnail.getResponse().getHeader("ETag")).endsWith("-64\"");
+        BufferedImage scaled = ImageIO.read(new ByteArrayInputStream(thumbnail.getResponse().getContentAsByteArray()));
+        assertThat(scaled.getWidth()).isEqualTo(64);
+        assertThat(scaled.getHeight()).isEqualTo(32);
+
+        mockMvc.perform(get("/api/stories/{storyId}/tags/character/{tagId}/image", storyId, characterTagId)
+                        .param("size", "original")
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.IMAGE_PNG))
+                .andExpect(content().bytes(original.toByteArray()));
+        mockMvc.perform(get("/api/stories/{storyId}/tags/character/{tagId}/image", storyId, characterTagId)
+                        .param("size", "100")
+                        .cookie(jwtCookie))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    @DisplayName("Uploads that are not images should be rejected and leave nothing behind")
+    @Transactional
+    @Rollback
+    void testCharacterImageUploadRejectsNonImages() throws Exception {
+        Long characterTagId = createCharacterTag("Character1", createCharacterTagType());
+        mockMvc.perform(multipart("/api/stories/{storyId}/tags/character/{tagId}/image", storyId, characterTagId)
+                        .file(new MockMultipartFile("file", "image.png", MediaType.IMAGE_PNG_VALUE, "<svg/>".getBytes()))
+                        .cookie(jwtCookie))
+                .andExpect(status().isBadRequest());
+
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM character_image", Integer.class)).isZero();
+        assertThat(meterRegistry.get("plottracker.images.upload.bytes.in.flight").gauge().value()).isZero();
+    }
+
+    @Test
+    @DisplayName("Reading and editing a character should check ownership with one query instead of loading the story")
+    @Transactional
+    @Rollback
+    void testCharacterAccessStatementCount() throws Exception {
+        Long characterTagId = createCharacterTag("Character1", createCharacterTagType());
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+
+        statistics.clear();
+        mockMvc.perform(get("/api/stories/{storyId}/tags/character/{tagId}", storyId, characterTagId)
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk());
+        // At most the user behind the JWT, the ownership check and the character together with its tag
+        assertThat(statistics.getPrepareStatementCount()).isLessThanOrEqualTo(3);
+
+        CharacterRequestDto request = new CharacterRequestDto();
+        request.setName("Renamed");
+        request.setShortDescription("Short");
+        request.setDescription("Long");
+        statistics.clear();
+        mockMvc.perform(put("/api/stories/{storyId}/tags/character/{tagId}", storyId, characterTagId)
+                        .cookie(jwtCookie)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.name").value("Renamed"));
+        entityManager.flush();
+        // The character, the story version, then the updates of the tag and the character; user and ownership come
+        // from the caches
+        assertThat(statistics.getPrepareStatementCount()).isLessThanOrEqualTo(4);
+    }
+
+    @Test
+    @DisplayName("Repeated ownership checks should be answered from the cache until the tag is deleted")
+    @Transactional
+    @Rollback
+    void testCharacterAccessIsCached() throws Exception {
+        Long characterTagId = createCharacterTag("Character1", createCharacterTagType());
+        mockMvc.perform(get("/api/stories/{storyId}/tags/character/{tagId}", storyId, characterTagId)
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk());
+        double hits = meterRegistry.get("cache.gets").tag("cache", "access.stories").tag("result", "hit")
+                .functionCounter().count();
+
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+        mockMvc.perform(get("/api/stories/{storyId}/tags/character/{tagId}", storyId, characterTagId)
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk());
+        // Only the character itself
+        assertThat(statistics.getPrepareStatementCount()).isEqualTo(1);
+        assertThat(meterRegistry.get("cache.gets").tag("cache", "access.stories").tag("result", "hit")
+                .functionCounter().count()).isGreaterThan(hits);
+
+        mockMvc.perform(delete("/api/stories/{storyId}/tags/{tagId}", storyId, characterTagId)
+                        .cookie(jwtCookie))
+                .andExpect(status().isOk());
+        mockMvc.perform(get("/api/stories/{storyId}/tags/character/{tagId}", storyId, characterTagId)
+                        .cookie(jwtCookie))
+                .andExpect(status().isNotFound());
+    }
+
+    private Long createCharacterTagType() throws Exception {
+        TagTypeRequestDto tagTypeRequest = new TagTypeRequestDto();
+        tagTypeRequest.setName("Character");
+        var tagTypeResult = mockMvc.perform(post("/api/stories/{storyId}/tagtypes", storyId)
+                        .cookie(jwtCookie)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(tagTypeRequest)))
+                .andExpect(status().isCreated())
+                .andReturn();
+        return ((Number) JsonPath.read(tagTypeResult.getResponse().getContentAsString(), "$.tagTypeId")).longValue();
+    }
+
+    private Long createCharacterTag(String name, Long characterTagTypeId) throws Exception {
+        TagRequestDto request = new TagRequestDto();
+        request.setTagName(name);
+        request.setColor("#123456");
+        request.setTagTypeId(characterTagTypeId);
+        var result = mockMvc.perform(post("/api/stories/{storyId}/tags", storyId)
+                        .cookie(jwtCookie)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isCreated())
+                .andReturn();
+        return ((Number) JsonPath.read(result.getResponse().getContentAsString(), "$.tagId")).longValue();
+    }
 }
@@ -0,0 +1,87 @@
+package com.sinenomine.plottracker.repo;
+
+import com.sinenomine.plottracker.enums.EventType;
+import com.sinenomine.plottracker.model.PlotEvent;
+import com.sinenomine.plottracker.model.Story;
+import com.sinenomine.plottracker.model.TimeOrderedIdGenerator;
+import com.sinenomine.plottracker.model.Users;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.PersistenceContext;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.Rollback;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class InsertBatchingIntegrationTest {
+
+    private static final int EVENTS = 500;
+
+    private final Logger log = LoggerFactory.getLogger(InsertBatchingIntegrationTest.class);
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Test
+    @DisplayName("Time-ordered ids should increase, stay unique and fit in a JavaScript number")
+    void testIdsAreOrderedAndJavaScriptSafe() {
+        long previous = 0;
+        for (int i = 0; i < 100_000; i++) {
+            long id = TimeOrderedIdGenerator.nextId();
+            assertThat(id).isGreaterThan(previous).isLessThanOrEqualTo((1L << 53) - 1);
+            previous = id;
+        }
+    }
+
+    @Test
+    @DisplayName("Inserting many plot events should send them in a few JDBC batches instead of one statement per row")
+    @Transactional
+    @Rollback
+    void testPlotEventInsertsAreBatched() {
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        Users user = entityManager.find(Users.class, 1L);
+        statistics.clear();
+        long start = System.nanoTime();
+
+        Story story = new Story();
+        story.setTitle("Batch Story");
+        story.setUser(user);
+        entityManager.persist(story);
+        List<Long> eventIds = new ArrayList<>();
+        for (int i = 0; i < EVENTS; i++) {
+            PlotEvent event = new PlotEvent();
+            event.setEventType(EventType.dated);
+            event.setTitle("Batch Event " + i);
+            event.setInPlot(true);
+            event.setPosition((i + 1) * 65536L);
+            event.setStory(story);
+            entityManager.persist(event);
+            eventIds.add(event.getEventId());
+        }
+        entityManager.flush();
+
+        long statements = statistics.getPrepareStatementCount();
+        log.info("Inserted {} plot events with {} prepared statements in {} ms",
+                EVENTS, statements, (System.nanoTime() - start) / 1_000_000);
+        assertThat(eventIds).doesNotContainNull().isSorted();
+        // One story insert and one statement per batch of hibernate.jdbc.batch_size rows, instead of EVENTS + 1
+        assertThat(statements).isLessThanOrEqualTo(1 + EVENTS / 50 + 1);
+    }
+}
@@ -0,0 +1,64 @@
+package com.sinenomine.plottracker.repo;
+
+import com.sinenomine.plottracker.model.UserPrincipal;
+import com.sinenomine.plottracker.service.JWTService;
+import com.sinenomine.plottracker.service.JwtKeyRing;
+import io.jsonwebtoken.JwtException;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class JwtSigningKeyIntegrationTest {
+
+    private static final UserPrincipal TEST_USER = new UserPrincipal(1L, "TestUser1", 0);
+
+    @Autowired
+    private JWTService jwtService;
+
+    @Autowired
+    private JwtKeyRing jwtKeyRing;
+
+    @Test
+    @DisplayName("After a key rotation new tokens should name the new key and older tokens should still verify")
+    void testRotationKeepsOldTokensValid() {
+        String oldKid = jwtKeyRing.signingKey().kid();
+        String oldToken = jwtService.generateToken(TEST_USER);
+        assertThat(header(oldToken)).contains("\"kid\":\"" + oldKid + "\"");
+
+        assertThat(jwtKeyRing.rotateIfOlderThan(Duration.ZERO)).isTrue();
+        assertThat(jwtKeyRing.rotateIfOlderThan(Duration.ofDays(1))).isFalse();
+
+        String newKid = jwtKeyRing.signingKey().kid();
+        String newToken = jwtService.generateToken(TEST_USER);
+        assertThat(newKid).isNotEqualTo(oldKid);
+        assertThat(header(newToken)).contains("\"kid\":\"" + newKid + "\"");
+        assertThat(jwtService.parseClaims(oldToken).getSubject()).isEqualTo("TestUser1");
+        assertThat(jwtService.parseClaims(newToken).getSubject()).isEqualTo("TestUser1");
+    }
+
+    @Test
+    @DisplayName("Tokens naming an unknown key should be rejected")
+    void testUnknownKidIsRejected() {
+        String token = jwtService.generateToken(TEST_USER);
+        String forgedHeader = Base64.getUrlEncoder().withoutPadding()
+                .encodeToString("{\"kid\":\"unknown\",\"alg\":\"HS256\"}".getBytes(StandardCharsets.UTF_8));
+        String forged = forgedHeader + token.substring(token.indexOf('.'));
+
+        assertThatThrownBy(() -> jwtService.parseClaims(forged)).isInstanceOf(JwtException.class);
+    }
+
+    private static String header(String token) {
+        return new String(Base64.getUrlDecoder().decode(token.substring(0, token.indexOf('.'))), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,271 @@
+package com.sinenomine.plottracker.repo;
+
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.data.domain.Limit;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterUtils;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Seeds a few hundred stories and checks with EXPLAIN that the SQL behind every repository query reads through an
+ * index instead of scanning a whole table. The SQL is the one Hibernate generates for the repository method, recorded
+ * with a statement inspector while the method runs.
+ */
+@SpringBootTest
+@ActiveProfiles("test")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class RepositoryIndexUsageIntegrationTest {
+
+    private static final long BASE_ID = 1_000_000L;
+    private static final int STORIES = 200;
+    private static final int TAG_TYPES_PER_STORY = 3;
+    private static final int TAGS_PER_STORY = 10;
+    private static final int EVENTS_PER_STORY = 50;
+
+    private static final long USER_ID = BASE_ID;
+    private static final String USERNAME = "IndexUsageUser";
+    private static final long STORY_ID = BASE_ID + STORIES / 2;
+    private static final long TAG_ID = BASE_ID + (STORY_ID - BASE_ID) * TAGS_PER_STORY;
+    private static final long TAG_TYPE_ID = BASE_ID + (STORY_ID - BASE_ID) * TAG_TYPES_PER_STORY;
+    private static final long EVENT_ID = BASE_ID + (STORY_ID - BASE_ID) * EVENTS_PER_STORY;
+    private static final int PROVISIONED_USERS = 500;
+    private static final int PENDING_EVERY = 50;
+
+    @TestConfiguration
+    static class StatementRecordingConfiguration {
+        @Bean
+        HibernatePropertiesCustomizer statementInspectorCustomizer() {
+            return properties -> properties.put(AvailableSettings.STATEMENT_INSPECTOR, new RecordingStatementInspector());
+        }
+    }
+
+    // Keeps the SQL Hibernate prepares on the current thread while record runs, and passes every statement on unchanged
+    static class RecordingStatementInspector implements StatementInspector {
+        private static final ThreadLocal<List<String>> RECORDED = new ThreadLocal<>();
+
+        static List<String> record(Runnable action) {
+            List<String> statements = new ArrayList<>();
+            RECORDED.set(statements);
+            try {
+                action.run();
+            } finally {
+                RECORDED.remove();
+            }
+            return statements;
+        }
+
+        @Override
+        public String inspect(String sql) {
+            List<String> statements = RECORDED.get();
+            if (statements != null)
+                statements.add(sql);
+            return sql;
+        }
+    }
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private StoryRepo storyRepo;
+
+    @Autowired
+    private UserRepo userRepo;
+
+    @Autowired
+    private PlotEventRepo plotEventRepo;
+
+    @Autowired
+    private TagRepo tagRepo;
+
+    @Autowired
+    private TagTypeRepo tagTypeRepo;
+
+    @Autowired
+    private CharacterRepo characterRepo;
+
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    void setTransactionManager(PlatformTransactionManager transactionManager) {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    @BeforeAll
+    void seedLargeDataset() {
+        jdbcTemplate.update("INSERT INTO users (user_id, username, password) VALUES (?, ?, 'x')", USER_ID, USERNAME);
+
+        // Mostly provisioned accounts with a few still pending, as the table looks once registrations have settled
+        List<Object[]> users = new ArrayList<>();
+        List<Object[]> tasks = new ArrayList<>();
+        for (int u = 1; u <= PROVISIONED_USERS; u++) {
+            users.add(new Object[]{USER_ID + u, USERNAME + u});
+            tasks.add(new Object[]{USER_ID + u, u % PENDING_EVERY == 0 ? ProvisioningTaskRepo.PENDING : ProvisioningTaskRepo.DONE});
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO users (user_id, username, password) VALUES (?, ?, 'x')", users);
+        jdbcTemplate.batchUpdate("INSERT INTO provisioning_task (user_id, status) VALUES (?, ?)", tasks);
+
+        List<Object[]> stories = new ArrayList<>();
+        List<Object[]> tagTypes = new ArrayList<>();
+        List<Object[]> tags = new ArrayList<>();
+        List<Object[]> characters = new ArrayList<>();
+        List<Object[]> events = new ArrayList<>();
+        List<Object[]> eventTags = new ArrayList<>();
+        for (int s = 0; s < STORIES; s++) {
+            long storyId = BASE_ID + s;
+            stories.add(new Object[]{storyId, "Story " + s, USER_ID});
+            for (int t = 0; t < TAG_TYPES_PER_STORY; t++) {
+                tagTypes.add(new Object[]{BASE_ID + (long) s * TAG_TYPES_PER_STORY + t, "Type " + t, storyId});
+            }
+            for (int t = 0; t < TAGS_PER_STORY; t++) {
+                long tagId = BASE_ID + (long) s * TAGS_PER_STORY + t;
+                long tagTypeId = BASE_ID + (long) s * TAG_TYPES_PER_STORY + t % TAG_TYPES_PER_STORY;
+                tags.add(new Object[]{tagId, "Tag " + t, "#FFFFFF", tagTypeId, storyId});
+                characters.add(new Object[]{tagId, tagId});
+            }
+            for (int e = 0; e < EVENTS_PER_STORY; e++) {
+                long eventId = BASE_ID + (long) s * EVENTS_PER_STORY + e;
+                events.add(new Object[]{eventId, "Event " + e, "1500.01." + (e % 28 + 1), 15000101L + e, (e + 1) * 65536L, storyId});
+                eventTags.add(new Object[]{eventId, BASE_ID + (long) s * TAGS_PER_STORY + e % TAGS_PER_STORY});
+                eventTags.add(new Object[]{eventId, BASE_ID + (long) s * TAGS_PER_STORY + (e + 1) % TAGS_PER_STORY});
+            }
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO story (story_id, title, user_id) VALUES (?, ?, ?)", stories);
+        jdbcTemplate.batchUpdate("INSERT INTO tag_type (tag_type_id, name, story_id) VALUES (?, ?, ?)", tagTypes);
+        jdbcTemplate.batchUpdate("INSERT INTO tag (tag_id, tag_name, color, tag_type_id, story_id) VALUES (?, ?, ?, ?, ?)", tags);
+        jdbcTemplate.batchUpdate("INSERT INTO characters (character_id, tag_id) VALUES (?, ?)", characters);
+        jdbcTemplate.batchUpdate("INSERT INTO plot_event (event_id, title, date, date_key, position, story_id, event_type, is_in_plot) " +
+                "VALUES (?, ?, ?, ?, ?, ?, 'dated', TRUE)", events);
+        jdbcTemplate.batchUpdate("INSERT INTO plot_event_tag (event_id, tag_id) VALUES (?, ?)", eventTags);
+        jdbcTemplate.execute("ANALYZE TABLE users, provisioning_task, story, tag_type, tag, characters, plot_event, plot_event_tag");
+    }
+
+    @AfterAll
+    void removeLargeDataset() {
+        jdbcTemplate.update("DELETE pt FROM plot_event_tag pt JOIN plot_event p ON p.event_id = pt.event_id WHERE p.event_id >= ?", BASE_ID);
+        jdbcTemplate.update("DELETE FROM plot_event WHERE event_id >= ?", BASE_ID);
+        jdbcTemplate.update("DELETE FROM characters WHERE character_id >= ?", BASE_ID);
+        jdbcTemplate.update("DELETE FROM tag WHERE tag_id >= ?", BASE_ID);
+        jdbcTemplate.update("DELETE FROM tag_type WHERE tag_type_id >= ?", BASE_ID);
+        jdbcTemplate.update("DELETE FROM story WHERE story_id >= ?", BASE_ID);
+        jdbcTemplate.update("DELETE FROM provisioning_task WHERE user_id >= ?", USER_ID);
+        jdbcTemplate.update("DELETE FROM users WHERE user_id >= ?", USER_ID);
+    }
+
+    @Test
+    @DisplayName("StoryRepo and UserRepo queries should use an index")
+    void testStoryRepoQueries() {
+        assertGeneratedSqlUsesIndexes(() -> storyRepo.findByUser(USER_ID), USER_ID);
+        assertGeneratedSqlUsesIndexes(() -> storyRepo.findByUserResponses(USER_ID), USER_ID);
+        assertGeneratedSqlUsesIndexes(() -> storyRepo.findAccess(STORY_ID), STORY_ID);
+        assertGeneratedSqlUsesIndexes(() -> storyRepo.findVersion(STORY_ID), STORY_ID);
+        assertGeneratedSqlUsesIndexes(() -> storyRepo.incrementVersion(STORY_ID), STORY_ID);
+        assertGeneratedSqlUsesIndexes(() -> userRepo.findByUsername(USERNAME), USERNAME);
+        assertGeneratedSqlUsesIndexes(() -> userRepo.findTokenVersion(USER_ID), USER_ID);
+    }
+
+    @Test
+    @DisplayName("PlotEventRepo queries should use an index")
+    void testPlotEventRepoQueries() {
+        long position = 10 * 65536L;
+        assertGeneratedSqlUsesIndexes(() -> plotEventRepo.findByStory(STORY_ID), STORY_ID);
+        assertGeneratedSqlUsesIndexes(() -> plotEventRepo.findByStory_StoryId(STORY_ID), STORY_ID);
+        assertGeneratedSqlUsesIndexes(() -> plotEventRepo.findByStory_StoryIdAndPositionNotNullOrderByPosition(STORY_ID), STORY_ID);
+        assertGeneratedSqlUsesIndexes(() -> plotEventRepo.findResponsesByStory(STORY_ID), STORY_ID);
+        assertGeneratedSqlUsesIndexes(() -> plotEventRepo.findResponsesByStoryInStoryOrder(STORY_ID), STORY_ID);
+        assertGeneratedSqlUsesIndexes(() -> plotEventRepo.findResponsesByStoryInDateOrder(STORY_ID, 15000101L, 15000120L, Limit.of(20)),
+                STORY_ID, 15000101L, 15000101L, 15000120L, 15000120L, 20);
+        assertGeneratedSqlUsesIndexes(() -> plotEventRepo.findStoryOrder(STORY_ID), STORY_ID);
+        assertGeneratedSqlUsesIndexes(() -> plotEventRepo.findPosition(STORY_ID, EVENT_ID), STORY_ID, EVENT_ID);
+        assertGeneratedSqlUsesIndexes(() -> plotEventRepo.findFirstPosition(STORY_ID, EVENT_ID), STORY_ID, EVENT_ID, EVENT_ID);
+        assertGeneratedSqlUsesIndexes(() -> plotEventRepo.findNextPosition(STORY_ID, position, EVENT_ID),
+                STORY_ID, position, EVENT_ID, EVENT_ID);
+        assertGeneratedSqlUsesIndexes(() -> plotEventRepo.findPrevEventId(STORY_ID, position), STORY_ID, position, 1);
+        assertGeneratedSqlUsesIndexes(() -> plotEventRepo.findPredecessors(STORY_ID, List.of(EVENT_ID, EVENT_ID + 1)),
+                STORY_ID, EVENT_ID, EVENT_ID + 1);
+        assertGeneratedSqlUsesIndexes(() -> plotEventRepo.findTagResponsesByStory(STORY_ID), STORY_ID);
+        assertGeneratedSqlUsesIndexes(() -> plotEventRepo.findTagResponsesByEventIds(List.of(EVENT_ID, EVENT_ID + 1)),
+                EVENT_ID, EVENT_ID + 1);
+        assertGeneratedSqlUsesIndexes(() -> plotEventRepo.findWithTagsByEventId(EVENT_ID), EVENT_ID);
+        assertGeneratedSqlUsesIndexes(() -> plotEventRepo.findAccess(EVENT_ID), EVENT_ID);
+        assertGeneratedSqlUsesIndexes(() -> plotEventRepo.deleteByStory_StoryId(STORY_ID), STORY_ID);
+        assertGeneratedSqlUsesIndexes(() -> plotEventRepo.deletePlotEventTagByStoryId(STORY_ID), STORY_ID);
+        assertGeneratedSqlUsesIndexes(() -> plotEventRepo.deletePlotEventTagByEventId(EVENT_ID), EVENT_ID);
+        assertGeneratedSqlUsesIndexes(() -> plotEventRepo.deletePlotEventTagByTagId(TAG_ID), TAG_ID);
+    }
+
+    @Test
+    @DisplayName("TagRepo and TagTypeRepo queries should use an index")
+    void testTagRepoQueries() {
+        assertGeneratedSqlUsesIndexes(() -> tagRepo.findByStory_StoryId(STORY_ID), STORY_ID);
+        assertGeneratedSqlUsesIndexes(() -> tagRepo.findByStoryResponses(STORY_ID), STORY_ID);
+        assertGeneratedSqlUsesIndexes(() -> tagRepo.findResponseById(TAG_ID), TAG_ID);
+        assertGeneratedSqlUsesIndexes(() -> tagRepo.findAccess(TAG_ID), TAG_ID);
+        assertGeneratedSqlUsesIndexes(() -> tagRepo.deleteByTagType_TagTypeId(TAG_TYPE_ID), TAG_TYPE_ID);
+        assertGeneratedSqlUsesIndexes(() -> tagTypeRepo.findByStory_StoryId(STORY_ID), STORY_ID);
+        assertGeneratedSqlUsesIndexes(() -> tagTypeRepo.findByStoryResponses(STORY_ID), STORY_ID);
+        assertGeneratedSqlUsesIndexes(() -> tagTypeRepo.findAccess(TAG_TYPE_ID), TAG_TYPE_ID);
+    }
+
+    @Test
+    @DisplayName("CharacterRepo queries should use an index")
+    void testCharacterRepoQueries() {
+        assertGeneratedSqlUsesIndexes(() -> characterRepo.findByTag_TagId(TAG_ID), TAG_ID);
+        assertGeneratedSqlUsesIndexes(() -> characterRepo.findByTag_Story_StoryId(STORY_ID), STORY_ID);
+        assertGeneratedSqlUsesIndexes(() -> characterRepo.findImageHashByTagId(TAG_ID), TAG_ID);
+        assertGeneratedSqlUsesIndexes(() -> characterRepo.findImageHashesByStoryId(STORY_ID), STORY_ID);
+        assertGeneratedSqlUsesIndexes(() -> characterRepo.deleteByStoryId(STORY_ID), STORY_ID);
+    }
+
+    @Test
+    @DisplayName("ProvisioningTaskRepo.claimDue should read the due index")
+    void testProvisioningTaskRepoQueries() {
+        assertUsesIndexes(NamedParameterUtils.parseSqlStatementIntoString(ProvisioningTaskRepo.CLAIM_DUE_SQL),
+                ProvisioningTaskRepo.PENDING);
+    }
+
+    // Runs the call in a transaction that is rolled back and explains the first statement Hibernate sent for it, with
+    // args in the order of its placeholders. Later statements are selects of eagerly fetched associations by primary
+    // key, or the row deletes of a derived delete, which also go by primary key.
+    private void assertGeneratedSqlUsesIndexes(Runnable repositoryCall, Object... args) {
+        List<String> statements = RecordingStatementInspector.record(() ->
+                transactionTemplate.executeWithoutResult(status -> {
+                    status.setRollbackOnly();
+                    repositoryCall.run();
+                }));
+        assertThat(statements).as("statements sent by the repository call").isNotEmpty();
+        String sql = statements.get(0);
+        assertThat(sql.chars().filter(c -> c == '?').count())
+                .as("placeholders in %s", sql)
+                .isEqualTo(args.length);
+        assertUsesIndexes(sql, args);
+    }
+
+    private void assertUsesIndexes(String sql, Object... args) {
+        List<Map<String, Object>> plan = jdbcTemplate.queryForList("EXPLAIN " + sql, args);
+        assertThat(plan).isNotEmpty();
+        for (Map<String, Object> row : plan) {
+            assertThat(row.get("type"))
+                    .as("access type of %s in %s", row.get("table"), sql)
+                    .isNotEqualTo("ALL");
+            assertThat(row.get("key"))
+                    .as("index used for %s in %s", row.get("table"), sql)
+                    .isNotNull();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.sinenomine.plottracker.repo;
+
+import com.sinenomine.plottracker.migration.V13__RecomputePlotEventDateKeys;
+import com.sinenomine.plottracker.migration.V3__FillPlotEventDateKeys;
+import com.sinenomine.plottracker.migration.V8__MoveCharacterImagesToImageStore;
+import com.sinenomine.plottracker.service.ImageStore;
+import org.flywaydb.core.Flyway;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+/**
+ * Runs the data migrations against rows as the earlier schema versions stored them, in a scratch schema next to the
+ * test database that is dropped again afterwards.
+ */
+@SpringBootTest
+@ActiveProfiles("test")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class SchemaMigrationIntegrationTest {
+
+    private static final String SCHEMA = "plottracker_migration_test";
+
+    @Value("${spring.datasource.url}")
+    private String url;
+
+    @Value("${spring.datasource.username}")
+    private String username;
+
+    @Value("${spring.datasource.password}")
+    private String password;
+
+    @Autowired
+    private ImageStore imageStore;
+
+    private DriverManagerDataSource dataSource;
+
+    @BeforeAll
+    void createDataSource() {
+        dataSource = new DriverManagerDataSource(url, username, password);
+    }
+
+    @AfterEach
+    void dropSchema() {
+        flyway(null).clean();
+    }
+
+    @Test
+    @DisplayName("V2 should turn every prev/next chain into gapped positions in chain order and leave other events unranked")
+    void testLinkedListBecomesPositions() {
+        flyway("1").migrate();
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.update("INSERT INTO " + SCHEMA + ".users (user_id, username, password) VALUES (1, 'User', 'x')");
+        jdbcTemplate.update("INSERT INTO " + SCHEMA + ".story (story_id, title, user_id) VALUES (1, 'One', 1), (2, 'Two', 1)");
+        // Story 1 reads 10 -> 30 -> 20 with 40 outside the plot; story 2 has a chain of its own
+        jdbcTemplate.update("INSERT INTO " + SCHEMA + ".plot_event (event_id, title, event_type, is_in_plot, story_id) VALUES " +
+                "(10, 'A', 'undated', true, 1), (20, 'C', 'undated', true, 1), (30, 'B', 'undated', true, 1), " +
+                "(40, 'D', 'undated', false, 1), (50, 'E', 'undated', true, 2), (60, 'F', 'undated', true, 2)");
+        jdbcTemplate.update("UPDATE " + SCHEMA + ".plot_event SET next_event_id = 30 WHERE event_id = 10");
+        jdbcTemplate.update("UPDATE " + SCHEMA + ".plot_event SET prev_event_id = 10, next_event_id = 20 WHERE event_id = 30");
+        jdbcTemplate.update("UPDATE " + SCHEMA + ".plot_event SET prev_event_id = 30 WHERE event_id = 20");
+        jdbcTemplate.update("UPDATE " + SCHEMA + ".plot_event SET next_event_id = 60 WHERE event_id = 50");
+        jdbcTemplate.update("UPDATE " + SCHEMA + ".plot_event SET prev_event_id = 50 WHERE event_id = 60");
+
+        flyway("2").migrate();
+
+        List<Map<String, Object>> rows = jdbcTemplate.queryForList(
+                "SELECT event_id, position FROM " + SCHEMA + ".plot_event ORDER BY event_id");
+        assertThat(rows).extracting(row -> ((Number) row.get("event_id")).longValue(),
+                        row -> row.get("position") == null ? null : ((Number) row.get("position")).longValue())
+                .containsExactly(
+                        tuple(10L, 65536L),
+                        tuple(20L, 3 * 65536L),
+                        tuple(30L, 2 * 65536L),
+                        tuple(40L, null),
+                        tuple(50L, 65536L),
+                        tuple(60L, 2 * 65536L));
+    }
+
+    @Test
+    @DisplayName("V3 should fill date keys in date order after the story's dateFormat and V13 should recompute stale ones")
+    void testDateKeysAreBackfilled() {
+        flyway("2").migrate();
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.update("INSERT INTO " + SCHEMA + ".users (user_id, username, password) VALUES (1, 'User', 'x')");
+        jdbcTemplate.update("INSERT INTO " + SCHEMA + ".story (story_id, title, user_id, date_format) VALUES " +
+                "(1, 'Formatted', 1, '9999.12.31'), (2, 'Plain', 1, NULL)");
+        jdbcTemplate.update("INSERT INTO " + SCHEMA + ".plot_event (event_id, title, event_type, is_in_plot, story_id, date) VALUES " +
+                "(10, 'A', 'dated', false, 1, '1500'), (11, 'B', 'dated', false, 1, '1499.12.31'), " +
+                "(12, 'C', 'dated', false, 1, '1500.01.01'), (13, 'D', 'dated', false, 1, 'soon'), " +
+                "(20, 'E', 'dated', false, 2, '2026-1-1'), (21, 'F', 'dated', false, 2, '2025-05-01'), " +
+                "(22, 'G', 'undated', false, 2, NULL)");
+
+        flyway("3").migrate();
+
+        assertThat(eventsInDateKeyOrder(jdbcTemplate, 1)).containsExactly(11L, 10L, 12L);
+        assertThat(eventsInDateKeyOrder(jdbcTemplate, 2)).containsExactly(21L, 20L);
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + SCHEMA + ".plot_event WHERE date_key IS NULL",
+                Integer.class)).isEqualTo(2);
+
+        // Keys as the width-based parser left them: 2026-1-1 before 2025-05-01
+        jdbcTemplate.update("UPDATE " + SCHEMA + ".plot_event SET date_key = 202611 WHERE event_id = 20");
+        jdbcTemplate.update("UPDATE " + SCHEMA + ".plot_event SET date_key = 20250501 WHERE event_id = 21");
+
+        flyway(null).migrate();
+
+        assertThat(eventsInDateKeyOrder(jdbcTemplate, 2)).containsExactly(21L, 20L);
+    }
+
+    private static List<Long> eventsInDateKeyOrder(JdbcTemplate jdbcTemplate, long storyId) {
+        return jdbcTemplate.queryForList("SELECT event_id FROM " + SCHEMA + ".plot_event " +
+                "WHERE story_id = ? AND date_key IS NOT NULL ORDER BY date_key", Long.class, storyId);
+    }
+
+    private Flyway flyway(String target) {
+        var configuration = Flyway.configure()
+                .dataSource(dataSource)
+                .schemas(SCHEMA)
+                .createSchemas(true)
+                .javaMigrations(new V3__FillPlotEventDateKeys(), new V8__MoveCharacterImagesToImageStore(imageStore),
+                        new V13__RecomputePlotEventDateKeys())
+                .cleanDisabled(false);
+        if (target != null)
+            configuration.target(target);
+        return configuration.load();
+    }
+}
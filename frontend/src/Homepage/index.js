@@ -25,7 +25,24 @@ const Homepage = () => {
   };
 
   useEffect(() => {
-    fetchStories();
+    // The demo story of a new account is copied in the background; show it once it is there
+    let timer;
+    const waitForProvisioning = async () => {
+      try {
+        const response = await apiService.getProvisioningStatus();
+        const { status } = await response.json();
+        if (status === "PENDING") {
+          timer = setTimeout(waitForProvisioning, 1000);
+        } else {
+          fetchStories();
+        }
+      } catch (error) {
+        console.error("Error fetching provisioning status:", error);
+        fetchStories();
+      }
+    };
+    waitForProvisioning();
+    return () => clearTimeout(timer);
   }, []);
 
   const handleStoryClick = (storyId) => {
@@ -13,6 +13,7 @@ const apiService = {
 
   // ----- User -----
   getUserDetails: () => ajax(`${API_BASE}/user`, "GET"),
+  getProvisioningStatus: () => ajax(`${API_BASE}/user/provisioning`, "GET"),
   changePassword: (passwordDto) =>
     ajax(`${API_BASE}/user/password`, "PUT", passwordDto),
   deleteUser: (passwordDto) => ajax(`${API_BASE}/user`, "DELETE", passwordDto),
@@ -78,8 +79,12 @@ const apiService = {
       "PUT",
       characterDto
     ),
-  getCharacterImage: (storyId, tagId) =>
-    ajax(`${API_BASE}/stories/${storyId}/tags/character/${tagId}/image`, "GET"),
+  // Content-addressed URL, cached by the browser for as long as the hash is current
+  getCharacterImage: (storyId, tagId, imageHash) =>
+    ajax(
+      `${API_BASE}/stories/${storyId}/tags/character/${tagId}/image/${imageHash}`,
+      "GET"
+    ),
   uploadCharacterImage: (storyId, tagId, file) => {
     const url = `${API_BASE}/stories/${storyId}/tags/character/${tagId}/image`;
     const formData = new FormData();
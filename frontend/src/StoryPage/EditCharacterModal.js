@@ -22,14 +22,20 @@ const EditCharacterModal = ({
   const [uploading, setUploading] = useState(false);
   const [uploadError, setUploadError] = useState(null);
 
+  const imageHash = characterData?.image_hash;
+
   useEffect(() => {
-    if (!show) {
+    if (!show || !imageHash) {
       setImageURL(null);
       return;
     }
     (async () => {
       try {
-        const resp = await apiService.getCharacterImage(storyId, tagId);
+        const resp = await apiService.getCharacterImage(
+          storyId,
+          tagId,
+          imageHash
+        );
         if (!resp.ok) return;
         const blob = await resp.blob();
         setImageURL(URL.createObjectURL(blob));
@@ -37,7 +43,7 @@ const EditCharacterModal = ({
         console.error("Error fetching character image:", err);
       }
     })();
-  }, [show, storyId, tagId]);
+  }, [show, storyId, tagId, imageHash]);
 
   const handleFileChange = (e) => {
     setSelectedFile(e.target.files[0] || null);
@@ -49,9 +55,10 @@ const EditCharacterModal = ({
     setUploadError(null);
     try {
       await apiService.uploadCharacterImage(storyId, tagId, selectedFile);
-      const resp = await apiService.getCharacterImage(storyId, tagId);
-      const blob = await resp.blob();
-      setImageURL(URL.createObjectURL(blob));
+      // The new hash changes the image URL, which makes the effect above fetch it
+      const resp = await apiService.getCharacter(storyId, tagId);
+      const data = await resp.json();
+      onChangeField("image_hash", data.image_hash);
     } catch (err) {
       console.error(err);
       setUploadError(err.message || "Upload failed");